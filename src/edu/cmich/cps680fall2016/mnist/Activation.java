@@ -27,6 +27,20 @@ public interface Activation {
         throw new UnsupportedOperationException("Not implemened yet.");
     }
 
+    /**
+     * Compute the same directional derivative as
+     * {@link #dctDerivative(float[], float[], float[])}, but from the
+     * <b>output</b> of the activation function rather than its input. This
+     * avoids recomputing the activation function when its output is already
+     * known, as it is during back-propagation.
+     * 
+     * <b>Note:</b> any of {@code act}, {@code dir}, and {@code out} may refer
+     * to the same array object.
+     */
+    public default void outDerivative(float[] act, float[] dir, float[] out) {
+        throw new UnsupportedOperationException("Not implemened yet.");
+    }
+
     /** Passthrough activation, i.e. a no-op. */
     public static Activation PASSTHROUGH = new Activation() {
 
@@ -40,6 +54,11 @@ public interface Activation {
             System.arraycopy(dir, 0, out, 0, dir.length);
         }
 
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            if (dir == out) return;
+            System.arraycopy(dir, 0, out, 0, dir.length);
+        }
+
         @Override public String toString() {
             return "passthrough";
         }
@@ -76,12 +95,47 @@ public interface Activation {
                 out[j] = (float) (val * (1 - val) * dir[j]);
             }
         }
+
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            // As above, with g_j(z) given directly:
+            //  dg_j(z) = d_j * g_j(z) * (1 - g_j(z))
+            for (int j = 0; j < out.length; j++) {
+                final float g_j = act[j];
+                out[j] = g_j * (1 - g_j) * dir[j];
+            }
+        }
         
         @Override public String toString() {
             return "logistic";
         }
     };
 
+    /** Rectified linear activation, {@code max(0, z)} of each component */
+    public static Activation RELU = new Activation() {
+
+        @Override public void activate(float[] in, float[] out) {
+            for (int k = 0; k < out.length; k++) {
+                out[k] = Math.max(0, in[k]);
+            }
+        }
+
+        @Override public void dctDerivative(float[] in, float[] dir, float[] out) {
+            // the derivative is 1 where z > 0 and 0 elsewhere (taking 0 at 0)
+            for (int j = 0; j < out.length; j++) {
+                out[j] = in[j] > 0 ? dir[j] : 0;
+            }
+        }
+
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            // g(z) > 0 exactly where z > 0
+            dctDerivative(act, dir, out);
+        }
+
+        @Override public String toString() {
+            return "relu";
+        }
+    };
+
     /** Softmax activation */
     public static Activation SOFTMAX = new Activation() {
 
@@ -105,34 +159,57 @@ public interface Activation {
             // The directional derivative is the left-product of the direction
             // vector with this tensor:
             //  dg_j(z) = SUM over all k of: d_k * g'_jk(z)
-            //          = d_j * g'_jj(z) + SUM over all k!=j of: d_k * g'_jk(z)
             //          = d_j * g_j(z) * (1 - g_j(z))
             //              - SUM over all k!=j of: d_k * g_k(z) * g_j(z)
-            // Note that the product  X*(1-X) is numerically unstable when
-            // X is close to 1 or 0; this means that a naive implementation of
-            // the above equation will tend to have stability problems.
-            // After some thought, I recognized that:
-            //  1 - g_j(z) = SUM over all k!=j of: g_k(z)
-            // Therefore we can write:
-            //  dg_j(z) = SUM over all k!=j of: d_j * g_j(z) * g_k(z)
-            //              - SUM over all k!=j of: d_k * g_k(z) * g_j(z)
+            //          = d_j * g_j(z) - SUM over all k of: d_k * g_k(z) * g_j(z)
             // or, finally:
-            //  dg_j(z) = g_j(z) * SUM over all k!=j of: g_k(z) * (d_j - d_k)
-            // This is as stable as I could make it.
-            double norm = 0;
-            double[] ein = new double[in.length];
+            //  dg_j(z) = g_j(z) * (d_j - SUM over all k of: g_k(z) * d_k)
+            // The sum is the same for every j, so this is O(n) rather than
+            // O(n^2), and it avoids the unstable product X*(1-X) entirely.
+            // The exponents are shifted by max(z), which cancels out in the
+            // normalization but keeps exp() from overflowing.
+            float max = Float.NEGATIVE_INFINITY;
             for (int k = 0; k < in.length; k++) {
-                norm += (ein[k] = Math.exp(in[k]));
+                max = Math.max(max, in[k]);
             }
-            for (int j = 0; j < out.length; j++) {
-                final double g_j = ein[j] / norm;
-                double dg_j = 0;
-                for (int k = 0; k < dir.length; k++) {
-                    if (k == j) continue;
-                    final double g_k = ein[k] / norm;
-                    dg_j += g_k * (dir[j] - dir[k]);
+            double norm = 0, dot = 0;
+            if (out != dir) {
+                // use the output as scratch space for exp(z_k - max)
+                for (int k = 0; k < in.length; k++) {
+                    final float ein_k = (float) Math.exp(in[k] - max);
+                    out[k] = ein_k;
+                    norm += ein_k;
+                    dot += ein_k * dir[k];
+                }
+                final double s = dot / norm;
+                for (int j = 0; j < out.length; j++) {
+                    out[j] = (float) (out[j] / norm * (dir[j] - s));
+                }
+            } else {
+                // no scratch space, so compute exp(z_k - max) twice
+                for (int k = 0; k < in.length; k++) {
+                    final double ein_k = Math.exp(in[k] - max);
+                    norm += ein_k;
+                    dot += ein_k * dir[k];
+                }
+                final double s = dot / norm;
+                for (int j = 0; j < out.length; j++) {
+                    final double g_j = Math.exp(in[j] - max) / norm;
+                    out[j] = (float) (g_j * (dir[j] - s));
                 }
-                out[j] = (float) (g_j * dg_j);
+            }
+        }
+
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            // As above, with g_j(z) given directly:
+            //  dg_j(z) = g_j(z) * (d_j - SUM over all k of: g_k(z) * d_k)
+            double dot = 0;
+            for (int k = 0; k < act.length; k++) {
+                dot += act[k] * dir[k];
+            }
+            final float s = (float) dot;
+            for (int j = 0; j < out.length; j++) {
+                out[j] = act[j] * (dir[j] - s);
             }
         }
         
@@ -140,4 +217,65 @@ public interface Activation {
             return "softmax";
         }
     };
+
+    /**
+     * Logistic activation, computed with {@link FastMath} in single precision.
+     */
+    public static Activation FAST_LOGISTIC = new Activation() {
+
+        @Override public void activate(float[] in, float[] out) {
+            for (int k = 0; k < out.length; k++) {
+                out[k] = FastMath.logistic(in[k]);
+            }
+        }
+
+        @Override public void dctDerivative(float[] in, float[] dir, float[] out) {
+            for (int j = 0; j < out.length; j++) {
+                final float val = FastMath.logistic(in[j]);
+                out[j] = val * (1 - val) * dir[j];
+            }
+        }
+
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            LOGISTIC.outDerivative(act, dir, out);
+        }
+
+        @Override public String toString() {
+            return "logistic (fast)";
+        }
+    };
+
+    /**
+     * Softmax activation, computed with {@link FastMath} in single precision.
+     */
+    public static Activation FAST_SOFTMAX = new Activation() {
+
+        @Override public void activate(float[] in, float[] out) {
+            // exponents are shifted by max(z) to avoid overflow, see SOFTMAX
+            float max = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < in.length; k++) {
+                max = Math.max(max, in[k]);
+            }
+            float norm = 0;
+            for (int k = 0; k < out.length; k++) {
+                norm += (out[k] = FastMath.exp(in[k] - max));
+            }
+            final float scale = 1 / norm;
+            for (int k = 0; k < out.length; k++) {
+                out[k] *= scale;
+            }
+        }
+
+        @Override public void dctDerivative(float[] in, float[] dir, float[] out) {
+            SOFTMAX.dctDerivative(in, dir, out);
+        }
+
+        @Override public void outDerivative(float[] act, float[] dir, float[] out) {
+            SOFTMAX.outDerivative(act, dir, out);
+        }
+
+        @Override public String toString() {
+            return "softmax (fast)";
+        }
+    };
 }
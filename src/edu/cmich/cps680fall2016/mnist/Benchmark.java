@@ -0,0 +1,271 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import static edu.cmich.cps680fall2016.mnist.Activation.*;
+import static edu.cmich.cps680fall2016.mnist.Loss.*;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Micro-benchmarks for the hot paths of training and applying a network.
+ * <p>
+ * Each benchmark is warmed up until the JIT has settled, then timed over
+ * several fixed-length iterations, and reported as the mean and standard
+ * deviation of the time per operation. Results of each operation are folded
+ * into {@link #sink} so the JIT cannot discard the work.
+ * <p>
+ * To compare the column tiling of the batch kernels, run the trainBatch
+ * benchmark of a wide shape with and without {@code -Dmnist.tileCols=256},
+ * e.g. {@code -filter=trainBatch 784-4000-4000-10}.
+ */
+public class Benchmark {
+
+    /** A single benchmarked operation */
+    private static interface Op {
+
+        public void run();
+    }
+
+    /** Consumes benchmark results so they are not optimized away */
+    public static volatile float sink;
+
+    private static final long WARMUP_NS = 1000000000L, ITER_NS = 500000000L;
+
+    private static final int ITERS = 5;
+
+    private final String filter;
+
+    private Benchmark(String filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> shapes = new ArrayList<>();
+        String filter = "";
+        for (String arg : args) {
+            if (arg.startsWith("-filter=")) filter = arg.substring(8);
+            else shapes.add(arg);
+        }
+        if (shapes.isEmpty()) {
+            shapes = Arrays.asList("784-10", "784-100-10", "784-800-800-10");
+        }
+        Benchmark b = new Benchmark(filter);
+        System.out.println("Kernels: " + Kernels.INSTANCE);
+        System.out.println("Tile columns: "
+                + Integer.getInteger("mnist.tileCols", 0));
+        System.out.format("%-48s %14s %12s\n", "Benchmark", "ns/op", "+/-");
+        for (String shape : shapes) {
+            b.network(shape);
+        }
+        for (int width : new int[] { 10, 100, 800 }) {
+            b.activations(width);
+        }
+        b.losses(10);
+        b.decoding();
+    }
+
+    /** Benchmark forward and backward passes of a network shape */
+    private void network(String shapestr) {
+        String[] dims = shapestr.split("-");
+        int[] shape = new int[dims.length];
+        for (int i = 0; i < dims.length; i++) {
+            shape[i] = Integer.parseInt(dims[i]);
+        }
+        Activation[] actv = new Activation[shape.length - 1];
+        Arrays.fill(actv, LOGISTIC);
+        actv[actv.length - 1] = PASSTHROUGH;
+        final SimpleNN nn = new SimpleNN(shape, actv, SOFTMAX_CROSS_ENTROPY,
+                new Random(1));
+        // keep the weights from drifting too far during training benchmarks
+        final float rate = 1e-6F;
+
+        final float[][] act = nn.valueArray();
+        final float[][] err = nn.valueArray();
+        final float[] exp = new float[shape[shape.length - 1]];
+        randomize(act[0], new Random(2));
+        exp[3] = 1;
+        run("SimpleNN.apply " + shapestr, new Op() {
+
+            @Override public void run() {
+                nn.apply(act);
+                sink += act[act.length - 1][0];
+            }
+        });
+        run("SimpleNN.train " + shapestr, new Op() {
+
+            @Override public void run() {
+                nn.train(act, err, exp, rate);
+                sink += err[1][0];
+            }
+        });
+
+        final MiniBatch apply = nn.applyValues(32);
+        apply.size = apply.capacity;
+        randomize(apply.act[0], new Random(3));
+        run("SimpleNN.applyBatch(32) " + shapestr + " per example", 32,
+                new Op() {
+
+                    @Override public void run() {
+                        nn.applyBatch(apply);
+                        sink += apply.act[apply.act.length - 1][0];
+                    }
+                });
+
+        final MiniBatch batch = nn.batchValues(32);
+        batch.size = batch.capacity;
+        randomize(batch.act[0], new Random(3));
+        for (int b = 0; b < batch.size; b++) {
+            batch.setLabel(b, b % exp.length);
+        }
+        run("SimpleNN.trainBatch(32) " + shapestr + " per example", 32,
+                new Op() {
+
+                    @Override public void run() {
+                        nn.trainBatch(batch, rate);
+                        sink += batch.grad[0][0];
+                    }
+                });
+    }
+
+    /** Benchmark each activation function at a layer width */
+    private void activations(int width) {
+        final float[] in = new float[width], dir = new float[width];
+        final float[] out = new float[width];
+        Random rand = new Random(4);
+        randomize(in, rand);
+        randomize(dir, rand);
+        for (final Activation a : new Activation[] { PASSTHROUGH, LOGISTIC,
+                SOFTMAX, FAST_LOGISTIC, FAST_SOFTMAX }) {
+            run("Activation." + a + ".activate " + width, new Op() {
+
+                @Override public void run() {
+                    a.activate(in, out);
+                    sink += out[0];
+                }
+            });
+            run("Activation." + a + ".dctDerivative " + width, new Op() {
+
+                @Override public void run() {
+                    a.dctDerivative(in, dir, out);
+                    sink += out[0];
+                }
+            });
+            run("Activation." + a + ".outDerivative " + width, new Op() {
+
+                @Override public void run() {
+                    a.outDerivative(in, dir, out);
+                    sink += out[0];
+                }
+            });
+        }
+    }
+
+    /** Benchmark each loss function at an output width */
+    private void losses(int width) {
+        final float[] in = new float[width], exp = new float[width];
+        final float[] out = new float[width];
+        randomize(in, new Random(5));
+        for (int j = 0; j < width; j++) {
+            in[j] = 0.01F + 0.98F * in[j]; // cross-entropy requires (0,1]
+        }
+        exp[width / 2] = 1;
+        for (final Loss l : new Loss[] { MEAN_SQUARED_ERR, CROSS_ENTROPY,
+                SOFTMAX_CROSS_ENTROPY, FAST_CROSS_ENTROPY,
+                FAST_SOFTMAX_CROSS_ENTROPY }) {
+            run("Loss." + l + ".loss " + width, new Op() {
+
+                @Override public void run() {
+                    sink += l.loss(in, exp);
+                }
+            });
+            run("Loss." + l + ".gradient " + width, new Op() {
+
+                @Override public void run() {
+                    l.gradient(in, exp, out);
+                    sink += out[0];
+                }
+            });
+        }
+    }
+
+    /** Benchmark decoding of the MNIST test images */
+    private void decoding() throws IOException {
+        final String file = "data/t10k-images-idx3-ubyte.gz";
+        final float[] out = new float[28 * 28];
+        final ImageSet[] img = { new ImageSet(file) };
+        run("ImageSet.nextImage(float[]) gz", new Op() {
+
+            @Override public void run() {
+                try {
+                    if (!img[0].hasNextImage()) img[0] = new ImageSet(file);
+                    img[0].nextImage(out);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                sink += out[0];
+            }
+        });
+        final DataSet data = Main.testingData();
+        final int[] idx = { 0 };
+        run("DataSet.image(float[])", new Op() {
+
+            @Override public void run() {
+                data.image(idx[0], out, 0);
+                idx[0] = (idx[0] + 1) % data.imageCnt;
+                sink += out[0];
+            }
+        });
+    }
+
+    private void run(String name, Op op) {
+        run(name, 1, op);
+    }
+
+    /**
+     * Time an operation and print the result.
+     *
+     * @param name The name of the benchmark
+     * @param opsPerCall The number of operations performed by each call, which
+     *            the time per call is divided by
+     * @param op The operation
+     */
+    private void run(String name, int opsPerCall, Op op) {
+        if (!name.contains(filter)) return;
+        // warm up, and find a call count that fills an iteration: double
+        // the count while a batch of calls is short, then scale it by the
+        // time per call of the last (warmest) batch
+        long calls = 1;
+        double callNs = 0;
+        for (long start = System.nanoTime(); System.nanoTime() - start < WARMUP_NS;) {
+            long t0 = System.nanoTime();
+            for (long c = 0; c < calls; c++) {
+                op.run();
+            }
+            long t = System.nanoTime() - t0;
+            callNs = t / (double) calls;
+            if (t < ITER_NS / 10) calls *= 2;
+        }
+        calls = Math.max(1, (long) (ITER_NS / callNs));
+        // measure
+        double[] ns = new double[ITERS];
+        double mean = 0;
+        for (int it = 0; it < ITERS; it++) {
+            long t0 = System.nanoTime();
+            for (long c = 0; c < calls; c++) {
+                op.run();
+            }
+            ns[it] = (System.nanoTime() - t0) / (double) (calls * opsPerCall);
+            mean += ns[it] / ITERS;
+        }
+        double var = 0;
+        for (int it = 0; it < ITERS; it++) {
+            var += (ns[it] - mean) * (ns[it] - mean) / ITERS;
+        }
+        System.out.format("%-48s %14.1f %12.1f\n", name, mean, Math.sqrt(var));
+    }
+
+    private static void randomize(float[] vals, Random rand) {
+        for (int i = 0; i < vals.length; i++) {
+            vals[i] = rand.nextFloat();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic background checkpointing of a training run.
+ * <p>
+ * The training thread calls {@link #update(long)} between weight updates.
+ * Whenever enough examples or time have passed, the weights are copied in
+ * bulk into one of two snapshot buffers, and a background thread writes that
+ * snapshot to a {@link ModelFile} together with the
+ * {@link ModelFile.TrainingState} needed to resume. Training only pays for the
+ * copy: if both buffers are still waiting to be written, the snapshot is
+ * skipped rather than stalling training.
+ * <p>
+ * The training state assumes that examples come from a {@link Sampler}
+ * which started at the beginning of epoch 0, so that after {@code n}
+ * examples the next one is at position {@code n % size} of epoch
+ * {@code n / size}. The sampler itself cannot be asked, since a
+ * {@link Prefetcher} runs ahead of training.
+ * <p>
+ * Only the weights and the example position are saved. The state of an
+ * {@link Optimizer} or {@link EarlyStopping} is not, so a resumed run matches
+ * an uninterrupted one only for plain SGD without early stopping.
+ */
+public class Checkpointer {
+
+    /** The name of the checkpoint file */
+    public final String file;
+
+    private final SimpleNN nn;
+
+    private final Sampler order;
+
+    private final long everyExamples, everyNanos;
+
+    /** Snapshot buffers that are not waiting to be written */
+    private final BlockingQueue<float[][]> free = new ArrayBlockingQueue<>(2);
+
+    private final ExecutorService writer;
+
+    /** The number of examples trained on before this checkpointer existed */
+    private final long start;
+
+    private long lastExamples, lastNanos;
+
+    private volatile IOException failure;
+
+    /**
+     * Create a new checkpointer.
+     *
+     * @param nn The network being trained
+     * @param order The order that examples are trained in
+     * @param start The number of examples already trained on, when resuming
+     *            from a checkpoint
+     * @param file The name of the checkpoint file, which is replaced by each
+     *            new checkpoint
+     * @param everyExamples Take a snapshot every this many examples, or 0 to
+     *            ignore the example count
+     * @param everySeconds Take a snapshot every this many seconds, or 0 to
+     *            ignore the time
+     */
+    public Checkpointer(SimpleNN nn, Sampler order, long start, String file,
+            long everyExamples, double everySeconds) {
+        this.nn = nn;
+        this.order = order;
+        this.start = start;
+        this.file = file;
+        this.everyExamples = everyExamples;
+        this.everyNanos = (long) (everySeconds * 1e9);
+        this.lastNanos = System.nanoTime();
+        for (int s = 0; s < 2; s++) {
+            free.add(nn.copyWeights(null));
+        }
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "checkpointer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Take a snapshot if one is due. Must be called by the training thread,
+     * between weight updates.
+     *
+     * @param trained The number of examples trained on since this
+     *            checkpointer was created
+     * @throws IOException if writing an earlier snapshot failed
+     */
+    public void update(long trained) throws IOException {
+        if (failure != null) throw failure;
+        boolean due = everyExamples > 0
+                && trained - lastExamples >= everyExamples;
+        due |= everyNanos > 0 && System.nanoTime() - lastNanos >= everyNanos;
+        if (due) snapshot(trained);
+    }
+
+    /**
+     * Take a snapshot now, unless both buffers are still waiting to be
+     * written. Must be called by the training thread, between weight updates.
+     *
+     * @param trained The number of examples trained on since this
+     *            checkpointer was created
+     * @return True if a snapshot was taken
+     */
+    public boolean snapshot(long trained) {
+        final float[][] weights = free.poll();
+        if (weights == null) return false;
+        write(weights, trained);
+        return true;
+    }
+
+    /** Copy the weights into a free buffer and queue it to be written */
+    private void write(final float[][] weights, long trained) {
+        nn.copyWeights(weights);
+        lastExamples = trained;
+        lastNanos = System.nanoTime();
+        final long examples = start + trained;
+        final ModelFile.TrainingState state = new ModelFile.TrainingState(
+                examples, order.seed, (int) (examples / order.size),
+                (int) (examples % order.size));
+        writer.execute(new Runnable() {
+
+            @Override public void run() {
+                try {
+                    ModelFile.save(nn, weights, state, file);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    free.add(weights);
+                }
+            }
+        });
+    }
+
+    /**
+     * Take a final snapshot, waiting for a buffer if necessary, then wait for
+     * all snapshots to be written and stop the background thread.
+     *
+     * @param trained The number of examples trained on since this
+     *            checkpointer was created
+     * @throws IOException if writing any snapshot failed
+     */
+    public void close(long trained) throws IOException {
+        try {
+            write(free.take(), trained);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,206 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Convolutional layer: each output channel is the sum of every input channel
+ * convolved with a {@code size * size} kernel, plus a bias, passed through an
+ * activation function. The kernels are applied at every position where they
+ * fit entirely inside the input (no padding, stride 1), so each output
+ * channel has {@code size - 1} fewer rows and columns than the input.
+ * <p>
+ * The convolution is computed as a matrix product, using im2col: the input
+ * values under the kernel at every output position are first copied into the
+ * columns of a patch matrix {@code col} (one row per kernel weight, one
+ * column per output position), so that
+ *
+ * <pre>
+ *  out[f][p] = bias[f] + SUM over all k of: weights[f][k] * col[k][p]
+ * </pre>
+ *
+ * Since the stride is 1, each kernel weight's row of {@code col} is made of
+ * whole row segments of the input, so building it is a series of array
+ * copies, and the product runs over contiguous rows with the same
+ * {@link Kernels} as the dense layers. The patch matrix (and its error, for
+ * back-propagation) is kept in the caller's scratch storage.
+ */
+public class ConvLayer implements ImageLayer {
+
+    private static final Kernels kern = Kernels.INSTANCE;
+
+    /** The number of input channels, and the size of each */
+    public final int channels, rows, cols;
+
+    /** The number of output channels (kernels) */
+    public final int filters;
+
+    /** The width and height of each kernel */
+    public final int size;
+
+    /** The activation function of the output */
+    public final Activation actv;
+
+    /**
+     * The kernel weights, {@code channels * size * size} per filter, in
+     * {@code [filter][channel][row][col]} order.
+     */
+    public final float[] weights;
+
+    /** The bias of each filter */
+    public final float[] bias;
+
+    /** The number of weights per filter, i.e. rows of the patch matrix */
+    private final int patch;
+
+    /**
+     * Create a new convolutional layer, with kernel weights initialized using
+     * a Gaussian distribution with standard deviation
+     * {@code 1 / sqrt(channels * size * size)}, and bias 0.
+     *
+     * @param channels The number of input channels
+     * @param rows The number of rows of each input channel
+     * @param cols The number of columns of each input channel
+     * @param filters The number of output channels
+     * @param size The width and height of each kernel
+     * @param actv The activation function, which must treat each value
+     *            independently (e.g. not softmax)
+     * @param rand The source of the initial weights
+     */
+    public ConvLayer(int channels, int rows, int cols, int filters, int size,
+            Activation actv, Random rand) {
+        assert (size > 0 && rows >= size && cols >= size && filters > 0);
+        this.channels = channels;
+        this.rows = rows;
+        this.cols = cols;
+        this.filters = filters;
+        this.size = size;
+        this.actv = actv;
+        this.patch = channels * size * size;
+        this.weights = new float[filters * patch];
+        this.bias = new float[filters];
+        final double scale = 1 / Math.sqrt(patch);
+        for (int k = 0; k < weights.length; k++) {
+            weights[k] = (float) (rand.nextGaussian() * scale);
+        }
+    }
+
+    @Override public int inChannels() {
+        return channels;
+    }
+
+    @Override public int inRows() {
+        return rows;
+    }
+
+    @Override public int inCols() {
+        return cols;
+    }
+
+    @Override public int outChannels() {
+        return filters;
+    }
+
+    @Override public int outRows() {
+        return rows - size + 1;
+    }
+
+    @Override public int outCols() {
+        return cols - size + 1;
+    }
+
+    /** The patch matrix, followed by its error */
+    @Override public int scratchSize() {
+        return 2 * patch * outRows() * outCols();
+    }
+
+    @Override public void forward(float[] in, float[] out, float[] scratch) {
+        final int positions = outRows() * outCols();
+        im2col(in, scratch);
+        for (int f = 0; f < filters; f++) {
+            final int o = f * positions;
+            Arrays.fill(out, o, o + positions, bias[f]);
+            for (int k = 0; k < patch; k++) {
+                kern.axpy(weights[f * patch + k], scratch, k * positions, out,
+                        o, positions);
+            }
+        }
+        actv.activate(out, out);
+    }
+
+    @Override public void backward(float[] in, float[] out, float[] err,
+            float[] inErr, float[] scratch, float rate) {
+        final int positions = outRows() * outCols();
+        final int dcol = patch * positions;
+        actv.outDerivative(out, err, err);
+
+        // error of the patch matrix, from the weights before they change
+        if (inErr != null) {
+            Arrays.fill(scratch, dcol, 2 * dcol, 0);
+            for (int f = 0; f < filters; f++) {
+                for (int k = 0; k < patch; k++) {
+                    kern.axpy(weights[f * patch + k], err, f * positions,
+                            scratch, dcol + k * positions, positions);
+                }
+            }
+            col2im(scratch, dcol, inErr);
+        }
+
+        // update the weights: the gradient of weights[f][k] is the dot
+        // product of the error of filter f and row k of the patch matrix
+        for (int f = 0; f < filters; f++) {
+            final int e = f * positions;
+            float sum = 0;
+            for (int p = 0; p < positions; p++) {
+                sum += err[e + p];
+            }
+            bias[f] -= rate * sum;
+            for (int k = 0; k < patch; k++) {
+                weights[f * patch + k] -= rate * kern.dot(err, e, scratch, k
+                        * positions, positions);
+            }
+        }
+    }
+
+    /** Copy the input under the kernel at every position into {@code col} */
+    private void im2col(float[] in, float[] col) {
+        final int orows = outRows(), ocols = outCols();
+        final int positions = orows * ocols;
+        for (int ch = 0, k = 0; ch < channels; ch++) {
+            for (int kr = 0; kr < size; kr++) {
+                for (int kc = 0; kc < size; kc++, k++) {
+                    for (int r = 0; r < orows; r++) {
+                        System.arraycopy(in, (ch * rows + r + kr) * cols + kc,
+                                col, k * positions + r * ocols, ocols);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sum the error of every patch matrix entry (starting at {@code off})
+     * into the input value it was copied from, the reverse of
+     * {@link #im2col(float[], float[])}.
+     */
+    private void col2im(float[] col, int off, float[] inErr) {
+        final int orows = outRows(), ocols = outCols();
+        final int positions = orows * ocols;
+        Arrays.fill(inErr, 0, channels * rows * cols, 0);
+        for (int ch = 0, k = 0; ch < channels; ch++) {
+            for (int kr = 0; kr < size; kr++) {
+                for (int kc = 0; kc < size; kc++, k++) {
+                    for (int r = 0; r < orows; r++) {
+                        kern.axpy(1, col, off + k * positions + r * ocols,
+                                inErr, (ch * rows + r + kr) * cols + kc,
+                                ocols);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override public String toString() {
+        return "conv " + filters + "x" + size + "x" + size + " " + actv;
+    }
+}
@@ -0,0 +1,184 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * A convolutional network: a front end of {@link ImageLayer}s (convolution
+ * and pooling) that turns an image into a stack of feature maps, followed by
+ * a fully connected {@link SimpleNN} head that classifies the feature maps.
+ * <p>
+ * Convolutions share each kernel's weights across every position in the
+ * image, so they need far fewer weights than a dense layer of the same
+ * output size, and pooling shrinks the feature maps before the dense layers.
+ * E.g. 8 5x5 kernels and 2x2 pooling turn a 28x28 image into 8*12*12 = 1152
+ * features with 208 weights, where a dense layer with 1152 outputs would need
+ * over 900,000.
+ */
+public class ConvNN {
+
+    /** The front end layers, in order */
+    public final ImageLayer[] layers;
+
+    /** The fully connected layers, whose input is the last front end output */
+    public final SimpleNN head;
+
+    /**
+     * The index of the first front end layer with parameters. Errors are not
+     * back-propagated past it, since no earlier layer has anything to update.
+     */
+    private final int firstTrained;
+
+    /** Value storage for training/applying the network to one example */
+    public static class Values {
+
+        /** The input image */
+        public final float[] in;
+
+        /** The output of the network */
+        public final float[] out;
+
+        /** The input of each front end layer, then the input of the head */
+        final float[][] act;
+
+        /** The errors of the values in {@code act} */
+        final float[][] err;
+
+        /** Scratch storage of each front end layer */
+        final float[][] scratch;
+
+        /** Values and errors of the head, sharing its input with act */
+        final float[][] headAct, headErr;
+
+        Values(ConvNN nn) {
+            final int n = nn.layers.length;
+            this.headAct = nn.head.valueArray();
+            this.headErr = nn.head.valueArray();
+            this.act = new float[n + 1][];
+            this.err = new float[n + 1][];
+            this.scratch = new float[n][];
+            for (int l = 0; l < n; l++) {
+                final ImageLayer layer = nn.layers[l];
+                act[l] = new float[size(layer)];
+                err[l] = new float[size(layer)];
+                scratch[l] = new float[layer.scratchSize()];
+            }
+            act[n] = headAct[0];
+            err[n] = headErr[0];
+            this.in = act[0];
+            this.out = headAct[headAct.length - 1];
+        }
+
+        private static int size(ImageLayer layer) {
+            return layer.inChannels() * layer.inRows() * layer.inCols();
+        }
+    }
+
+    /**
+     * Create a new convolutional network.
+     *
+     * @param layers The front end layers, each taking the output of the one
+     *            before it
+     * @param head The fully connected layers, taking the output of the last
+     *            front end layer. Its {@link SimpleNN#sparseInput} must be
+     *            false, since training needs the error of its input.
+     */
+    public ConvNN(ImageLayer[] layers, SimpleNN head) {
+        for (int l = 1; l < layers.length; l++) {
+            final ImageLayer prev = layers[l - 1], layer = layers[l];
+            if (prev.outChannels() != layer.inChannels()
+                    || prev.outRows() != layer.inRows()
+                    || prev.outCols() != layer.inCols()) {
+                throw new IllegalArgumentException("Layer " + l
+                        + " does not fit the output of layer " + (l - 1));
+            }
+        }
+        final ImageLayer last = layers[layers.length - 1];
+        if (head.shape[0] != last.outChannels() * last.outRows() * last
+                .outCols()) {
+            throw new IllegalArgumentException(
+                    "Head input does not fit the front end output");
+        }
+        this.layers = layers.clone();
+        this.head = head;
+        int first = 0;
+        while (first < layers.length && !(layers[first] instanceof ConvLayer)) {
+            first++;
+        }
+        this.firstTrained = first;
+    }
+
+    /** Allocate value storage for training/applying the network. */
+    public Values valueArray() {
+        return new Values(this);
+    }
+
+    /**
+     * Apply the network to the input image in {@code vals.in}, leaving the
+     * output in {@code vals.out}.
+     */
+    public void apply(Values vals) {
+        for (int l = 0; l < layers.length; l++) {
+            layers[l].forward(vals.act[l], vals.act[l + 1], vals.scratch[l]);
+        }
+        head.apply(vals.headAct);
+    }
+
+    /**
+     * Train the network with the input image in {@code vals.in} and an
+     * expected output, by stochastic gradient descent.
+     *
+     * @param vals Value storage, with the input image
+     * @param expected The expected output
+     * @param rate The back-propagation rate
+     */
+    public void train(Values vals, float[] expected, float rate) {
+        assert (!head.sparseInput);
+        for (int l = 0; l < layers.length; l++) {
+            layers[l].forward(vals.act[l], vals.act[l + 1], vals.scratch[l]);
+        }
+        // the head also leaves the error of its input in err[layers.length]
+        head.train(vals.headAct, vals.headErr, expected, rate);
+        for (int l = layers.length - 1; l >= firstTrained; l--) {
+            layers[l].backward(vals.act[l], vals.act[l + 1], vals.err[l + 1],
+                    l > firstTrained ? vals.err[l] : null, vals.scratch[l],
+                    rate);
+        }
+    }
+
+    /**
+     * Evaluate the network on the first {@code count} examples of a data set,
+     * wrapping around to the start if there are fewer.
+     *
+     * @param data The examples
+     * @param count The number of examples
+     * @return The metrics of all examples
+     */
+    public Metrics test(DataSet data, int count) {
+        final Values vals = valueArray();
+        final float[] exp = new float[vals.out.length];
+        final Metrics m = new Metrics(vals.out.length);
+        for (int c = 0; c < count; c++) {
+            final int idx = c % data.imageCnt, label = data.label(idx);
+            data.image(idx, vals.in, 0);
+            apply(vals);
+            exp[label] = 1;
+            m.add(label, Metrics.answer(vals.out, 0, vals.out.length),
+                    head.loss.loss(vals.out, exp));
+            exp[label] = 0;
+        }
+        return m;
+    }
+
+    /** Return the number of weights, including biases */
+    public long weightCount() {
+        long n = 0;
+        for (ImageLayer layer : layers) {
+            if (layer instanceof ConvLayer) {
+                n += ((ConvLayer) layer).weights.length
+                        + ((ConvLayer) layer).bias.length;
+            }
+        }
+        for (float[] w : head.weights) {
+            n += w.length;
+        }
+        return n;
+    }
+}
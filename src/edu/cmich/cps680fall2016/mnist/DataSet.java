@@ -0,0 +1,141 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A MNIST data set of labeled images, decoded once and held in memory.
+ * <p>
+ * All images are stored in a single contiguous buffer of unsigned bytes, so
+ * repeated passes over the data set cost no I/O or decompression. When both
+ * sets are memory-mapped, the buffers are views of the mapped files: nothing
+ * is copied onto the heap, loading only reads the headers, and processes
+ * reading the same files share their pages in the OS page cache. Streamed
+ * (gz-compressed) sets are decoded into heap buffers instead.
+ * <p>
+ * Images are indexed by int offsets, so a set of images may hold at most
+ * 2 GB of pixels (the limit of a single {@link ByteBuffer}).
+ */
+public class DataSet {
+
+    public final int imageCnt, rowCnt, colCnt;
+
+    /** Pixels of every image, {@code rowCnt*colCnt} per image, row-major */
+    private final ByteBuffer pixels;
+
+    /** Label of every image, as byte value 0-9 */
+    private final ByteBuffer labels;
+
+    /** Normalized pixels of every image, or null if not yet computed */
+    private volatile float[] floats;
+
+    private static final Map<String, DataSet> cache = new HashMap<>();
+
+    /**
+     * Decode all remaining images and labels from a pair of sets. The pixels
+     * and labels of memory-mapped sets are not copied.
+     *
+     * @param img A set of images
+     * @param lbl A set of labels for the images
+     * @throws IOException
+     */
+    public DataSet(ImageSet img, LabelSet lbl) throws IOException {
+        if (img.remaining() != lbl.remaining())
+            throw new IOException("Image count (" + img.remaining()
+                    + ") does not match label count (" + lbl.remaining() + ")");
+        this.imageCnt = img.remaining();
+        this.rowCnt = img.rowCnt;
+        this.colCnt = img.colCnt;
+        if ((long) imageCnt * rowCnt * colCnt > Integer.MAX_VALUE)
+            throw new IOException("Image set is larger than 2 GB");
+        this.pixels = img.isMapped() ? img.nextImages(imageCnt) : ByteBuffer
+                .wrap(img.nextImages(new byte[imageCnt * rowCnt * colCnt], 0,
+                        imageCnt));
+        this.labels = lbl.isMapped() ? lbl.nextLabels(imageCnt) : ByteBuffer
+                .wrap(lbl.nextLabels(new byte[imageCnt], 0, imageCnt));
+    }
+
+    /**
+     * Return the data set for a pair of MNIST files, decoding them only the
+     * first time they are requested. Uncompressed files are memory-mapped.
+     *
+     * @param mnistImageFile The name of a gz-compressed MNIST image file, or
+     *            an uncompressed one
+     * @param mnistLabelFile The name of a gz-compressed MNIST label file, or
+     *            an uncompressed one
+     * @see ImageSet#open(String)
+     * @throws IOException
+     */
+    public static DataSet load(String mnistImageFile, String mnistLabelFile)
+            throws IOException {
+        String key = mnistImageFile + "\0" + mnistLabelFile;
+        synchronized (cache) {
+            DataSet data = cache.get(key);
+            if (data == null) {
+                data = new DataSet(ImageSet.open(mnistImageFile), LabelSet
+                        .open(mnistLabelFile));
+                cache.put(key, data);
+            }
+            return data;
+        }
+    }
+
+    /** Return the number of pixels in each image */
+    public int pixelCnt() {
+        return rowCnt * colCnt;
+    }
+
+    /** Return the label of image {@code idx}, as byte value 0-9. */
+    public byte label(int idx) {
+        return labels.get(idx);
+    }
+
+    /**
+     * Store image {@code idx} in {@code out} starting at offset {@code off},
+     * as {@code rowCnt*colCnt} pixels, one unsigned byte per pixel, in
+     * row-major order.
+     */
+    public byte[] image(int idx, byte[] out, int off) {
+        final ByteBuffer src = pixels.duplicate();
+        src.position(idx * pixelCnt());
+        src.get(out, off, pixelCnt());
+        return out;
+    }
+
+    /**
+     * Store image {@code idx} in {@code out} starting at offset {@code off},
+     * as {@code rowCnt*colCnt} pixels, one float in the range [0-1] per pixel,
+     * in row-major order.
+     */
+    public float[] image(int idx, float[] out, int off) {
+        final int cnt = pixelCnt(), base = idx * cnt;
+        final float[] f = floats;
+        if (f != null) {
+            System.arraycopy(f, base, out, off, cnt);
+        } else {
+            for (int i = 0; i < cnt; i++) {
+                out[off + i] = (pixels.get(base + i) & 0xFF) / 255F;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Return the normalized pixels of every image, {@code rowCnt*colCnt}
+     * floats in the range [0-1] per image in row-major order. The array is
+     * computed on first use (4x the memory of the raw pixels), and is shared
+     * and must not be modified.
+     */
+    public synchronized float[] floats() {
+        if (floats == null) {
+            float[] f = new float[pixels.capacity()];
+            for (int i = 0; i < f.length; i++) {
+                f[i] = (pixels.get(i) & 0xFF) / 255F;
+            }
+            floats = f;
+        }
+        return floats;
+    }
+}
@@ -0,0 +1,119 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Validation-based early stopping for a training run.
+ * <p>
+ * Part of the training data is held out from training (see
+ * {@link Sampler#size}). Every so many examples, the network is evaluated on
+ * the held-out examples; training stops once the validation error rate has
+ * not improved for a number of validations in a row. The weights with the
+ * lowest validation error are kept in a copy, and put back by
+ * {@link #finish(long)} once training ends.
+ */
+public class EarlyStopping {
+
+    /** The number of examples between validations */
+    public final long every;
+
+    /** The number of validations without improvement before stopping */
+    public final int patience;
+
+    private final SimpleNN nn;
+
+    private final DataSet data;
+
+    private final int first, count;
+
+    private final Evaluator evaluator;
+
+    /** The best weights so far */
+    private final float[][] best;
+
+    private long next, lastExamples = -1;
+
+    private int stale;
+
+    /** The metrics of the latest validation, or null if none yet */
+    public Metrics last;
+
+    /** The lowest validation error rate so far */
+    public float bestError = Float.POSITIVE_INFINITY;
+
+    /** The number of examples trained on when the best weights were kept */
+    public long bestExamples = -1;
+
+    /**
+     * Create a new early stopping monitor.
+     *
+     * @param nn The network being trained
+     * @param data The data set containing the held-out examples
+     * @param first The index of the first held-out example
+     * @param count The number of held-out examples
+     * @param every Validate every this many examples
+     * @param patience Stop after this many validations in a row without
+     *            improvement
+     * @param threads The number of threads to validate on
+     */
+    public EarlyStopping(SimpleNN nn, DataSet data, int first, int count,
+            long every, int patience, int threads) {
+        assert (count > 0 && every > 0 && patience > 0);
+        this.nn = nn;
+        this.data = data;
+        this.first = first;
+        this.count = count;
+        this.every = every;
+        this.patience = patience;
+        this.evaluator = new Evaluator(nn, threads);
+        this.best = nn.copyWeights(null);
+        this.next = every;
+    }
+
+    /**
+     * Return true if a validation is due, i.e. {@link #validate(long)}
+     * should be called before the next update.
+     *
+     * @param examples The number of examples trained on so far
+     */
+    public boolean due(long examples) {
+        return examples >= next;
+    }
+
+    /**
+     * Evaluate the network on the held-out examples, keeping its weights if
+     * they are the best so far.
+     *
+     * @param examples The number of examples trained on so far
+     * @return True if training should stop
+     */
+    public boolean validate(long examples) {
+        next = examples + every;
+        lastExamples = examples;
+        last = evaluator.evaluate(data, first, count);
+        final float err = last.errorRate();
+        if (err < bestError) {
+            bestError = err;
+            bestExamples = examples;
+            nn.copyWeights(best);
+            stale = 0;
+        } else {
+            stale++;
+        }
+        return stale >= patience;
+    }
+
+    /**
+     * Validate the final weights (unless that was just done), put back the
+     * weights with the lowest validation error, and stop the validation
+     * threads. The monitor may not be used afterwards.
+     *
+     * @param examples The number of examples trained on
+     * @return True if a final validation was done
+     */
+    public boolean finish(long examples) {
+        final boolean validated = examples != lastExamples;
+        if (validated) validate(examples);
+        if (bestExamples != examples) nn.setWeights(best);
+        evaluator.shutdown();
+        return validated;
+    }
+}
@@ -0,0 +1,160 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel evaluation of a {@link SimpleNN} on a data set.
+ * <p>
+ * The examples are split into one contiguous range per worker. Each worker
+ * applies the network to its range in batches, using its own value storage,
+ * and counts the results into its own {@link Metrics}, so workers share
+ * nothing but the (read-only) weights. The per-worker metrics are merged in
+ * worker order once all workers are done.
+ */
+public class Evaluator {
+
+    /** The network being evaluated */
+    public final SimpleNN nn;
+
+    /** The number of worker threads */
+    public final int threads;
+
+    private static final int BATCH = 100;
+
+    private final ForkJoinPool pool;
+
+    /** Per-worker value storage */
+    private final MiniBatch[] batches;
+
+    /**
+     * Create a new evaluator.
+     *
+     * @param nn The network to evaluate
+     * @param threads The number of worker threads
+     */
+    public Evaluator(SimpleNN nn, int threads) {
+        assert (threads > 0);
+        this.nn = nn;
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads);
+        this.batches = new MiniBatch[threads];
+        for (int t = 0; t < threads; t++) {
+            batches[t] = nn.applyValues(BATCH);
+        }
+    }
+
+    /**
+     * Evaluate the network on the first {@code count} examples of a data set,
+     * wrapping around to the start if there are fewer.
+     *
+     * @param data The examples
+     * @param count The number of examples
+     * @return The metrics of all examples
+     */
+    public Metrics evaluate(DataSet data, int count) {
+        return evaluate(data, 0, count);
+    }
+
+    /**
+     * Evaluate the network on {@code count} examples of a data set, starting
+     * from example {@code first} and wrapping around to the start of the data
+     * set if there are fewer.
+     *
+     * @param data The examples
+     * @param first The index of the first example
+     * @param count The number of examples
+     * @return The metrics of all examples
+     */
+    public Metrics evaluate(final DataSet data, final int first,
+            final int count) {
+        final int outcnt = nn.shape[nn.shape.length - 1];
+        final Metrics[] parts = new Metrics[threads];
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final MiniBatch batch = batches[t];
+            final Metrics m = parts[t] = new Metrics(outcnt);
+            final int c0 = (int) ((long) count * t / threads);
+            final int c1 = (int) ((long) count * (t + 1) / threads);
+            tasks.add(new RecursiveAction() {
+
+                @Override protected void compute() {
+                    for (int c = c0; c < c1; c += batch.size) {
+                        batch.size = Math.min(batch.capacity, c1 - c);
+                        for (int b = 0; b < batch.size; b++) {
+                            final int idx = (first + c + b) % data.imageCnt;
+                            data.image(idx, batch.act[0], batch
+                                    .inputOffset(b));
+                            batch.setLabel(b, data.label(idx));
+                        }
+                        nn.applyBatch(batch);
+                        count(batch, m);
+                    }
+                }
+            });
+        }
+        pool.invoke(new RecursiveAction() {
+
+            @Override protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // merge in worker order
+        Metrics total = new Metrics(outcnt);
+        for (Metrics m : parts) {
+            total.merge(m);
+        }
+        return total;
+    }
+
+    /** Count the output rows of an applied batch into {@code m} */
+    private void count(MiniBatch batch, Metrics m) {
+        final int layermax = nn.shape.length - 1;
+        final int outcnt = nn.shape[layermax];
+        final float[] out = batch.rowA[layermax], exp = batch.rowB[layermax];
+        for (int b = 0; b < batch.size; b++) {
+            System.arraycopy(batch.act[layermax], b * outcnt, out, 0, outcnt);
+            System.arraycopy(batch.expected, b * outcnt, exp, 0, outcnt);
+            int label = 0;
+            for (int j = 1; j < outcnt; j++) {
+                if (exp[j] > exp[label]) label = j;
+            }
+            m.add(label, Metrics.answer(out, 0, outcnt), nn.loss.loss(out,
+                    exp));
+        }
+    }
+
+    /**
+     * Return the fraction of the examples in a data set that a network
+     * classifies incorrectly, on the calling thread. Unlike
+     * {@link #evaluate(DataSet, int)}, no loss is computed, so this times
+     * only the forward passes.
+     */
+    public static float errorRate(SimpleNN nn, DataSet data) {
+        final MiniBatch batch = nn.applyValues(BATCH);
+        final int outcnt = nn.shape[nn.shape.length - 1];
+        final float[] out = batch.act[batch.act.length - 1];
+        int errcnt = 0;
+        for (int c = 0; c < data.imageCnt; c += batch.size) {
+            batch.size = Math.min(batch.capacity, data.imageCnt - c);
+            for (int b = 0; b < batch.size; b++) {
+                data.image(c + b, batch.act[0], batch.inputOffset(b));
+            }
+            nn.applyBatch(batch);
+            for (int b = 0; b < batch.size; b++) {
+                int answer = Metrics.answer(out, b * outcnt, outcnt);
+                if (answer != data.label(c + b)) errcnt++;
+            }
+        }
+        return errcnt / (float) data.imageCnt;
+    }
+
+    /** Stop the worker threads. The evaluator may not be used afterwards. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,139 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import static edu.cmich.cps680fall2016.mnist.Activation.*;
+import static edu.cmich.cps680fall2016.mnist.Loss.*;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Fast single-precision approximations of the transcendental functions used
+ * by the activation and loss functions.
+ * <p>
+ * Error bounds (measured over the whole fast range by {@link #main}):
+ * <ul>
+ * <li>{@link #exp(float)}: relative error below 3e-7 (about 2.5 ulp) for
+ * {@code -87 <= x <= 88}; outside that range it falls back to
+ * {@link Math#exp(double)}.</li>
+ * <li>{@link #log(float)}: error below 3 ulp of the result (so absolute error
+ * below 4e-6) for all positive normal floats; zero, negative, denormal,
+ * infinite and NaN inputs fall back to {@link Math#log(double)}.</li>
+ * <li>{@link #logistic(float)}: absolute error below 1.1e-7.</li>
+ * </ul>
+ * These are comparable to the rounding error of storing the result in a
+ * float, which is what every caller does anyway.
+ */
+public final class FastMath {
+
+    private FastMath() {}
+
+    private static final float LOG2E = 1.44269504F;
+
+    /** ln(2), split so that {@code n * LN2_HI} is exact for small n */
+    private static final float LN2_HI = 0.693145752F, LN2_LO = 1.42860677e-6F;
+
+    private static final float SQRT2 = 1.41421356F;
+
+    /** Approximate e^x. */
+    public static float exp(float x) {
+        if (!(x >= -87F && x <= 88F)) return (float) Math.exp(x);
+        // x = n*ln(2) + r, with |r| <= ln(2)/2
+        final int n = Math.round(x * LOG2E);
+        final float r = x - n * LN2_HI - n * LN2_LO;
+        // e^r by its Taylor series to degree 6, error < 1.2e-7 for |r|<=0.35
+        final float p = 1 + r * (1 + r * (1 / 2F + r * (1 / 6F + r
+                * (1 / 24F + r * (1 / 120F + r * (1 / 720F))))));
+        // e^x = 2^n * e^r
+        return p * Float.intBitsToFloat((n + 127) << 23);
+    }
+
+    /** Approximate the natural logarithm of x. */
+    public static float log(float x) {
+        if (!(x >= Float.MIN_NORMAL && x <= Float.MAX_VALUE)) {
+            return (float) Math.log(x);
+        }
+        // x = 2^e * m, with sqrt(1/2) <= m < sqrt(2)
+        final int bits = Float.floatToRawIntBits(x);
+        int e = (bits >>> 23) - 127;
+        float m = Float.intBitsToFloat((bits & 0x007FFFFF) | 0x3F800000);
+        if (m > SQRT2) {
+            m *= 0.5F;
+            e++;
+        }
+        // log(m) = 2*atanh(s) with s = (m-1)/(m+1), |s| <= 0.172
+        final float s = (m - 1) / (m + 1), s2 = s * s;
+        final float logm = 2 * s * (1 + s2 * (1 / 3F + s2 * (1 / 5F + s2
+                * (1 / 7F + s2 * (1 / 9F)))));
+        return e * LN2_HI + (logm + e * LN2_LO);
+    }
+
+    /** Approximate the logistic function 1/(1 + e^-x). */
+    public static float logistic(float x) {
+        return 1 / (1 + exp(-x));
+    }
+
+    /**
+     * Accuracy harness: measure the error of each approximation against the
+     * exact function, then (if the training data is available) train the same
+     * network with exact and fast activation/loss functions and compare the
+     * final error rates on the test set.
+     * <p>
+     * Usage: {@code FastMath [TRAINCNT]}
+     */
+    public static void main(String[] args) throws IOException {
+        double maxrel = 0, maxulp = 0, maxsig = 0;
+        for (float x = -87F; x <= 88F; x = Math.nextUp(x + 1e-4F)) {
+            double exact = Math.exp(x);
+            maxrel = Math.max(maxrel, Math.abs(exp(x) - exact) / exact);
+            double sig = 1 / (1 + Math.exp(-x));
+            maxsig = Math.max(maxsig, Math.abs(logistic(x) - sig));
+        }
+        Random rand = new Random(1);
+        for (int i = 0; i < 10000000; i++) {
+            float x = Float.intBitsToFloat(Float.floatToRawIntBits(
+                    Float.MIN_NORMAL) + rand.nextInt(0x7F000000));
+            double exact = Math.log(x);
+            maxulp = Math.max(maxulp, Math.abs(log(x) - exact)
+                    / Math.ulp((float) exact));
+        }
+        System.out.format("exp:      max relative error %.3g\n", maxrel);
+        System.out.format("log:      max error %.3g ulp\n", maxulp);
+        System.out.format("logistic: max absolute error %.3g\n", maxsig);
+
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 60000;
+        DataSet train;
+        try {
+            train = Main.trainingData();
+        } catch (IOException e) {
+            System.out.println("No training data, skipping MNIST comparison: "
+                    + e.getMessage());
+            return;
+        }
+        int[] shape = { 28 * 28, 100, 10 };
+        float exact = errorRate(new SimpleNN(shape, new Activation[] {
+                LOGISTIC, SOFTMAX }, CROSS_ENTROPY, new Random(1)), train,
+                count);
+        float fast = errorRate(new SimpleNN(shape, new Activation[] {
+                FAST_LOGISTIC, FAST_SOFTMAX }, FAST_CROSS_ENTROPY, new Random(
+                        1)), train, count);
+        System.out.format("MNIST 784-100-10 after %d examples: "
+                + "exact %6.2f%% incorrect, fast %6.2f%% incorrect\n", count,
+                exact * 100, fast * 100);
+    }
+
+    /** Train a network in a fixed order and return its test error rate */
+    private static float errorRate(SimpleNN nn, DataSet train, int count)
+            throws IOException {
+        float[][] act = nn.valueArray();
+        float[][] err = nn.valueArray();
+        float[] exp = new float[10];
+        Sampler order = new Sampler(train.imageCnt, 1);
+        for (int c = 0; c < count; c++) {
+            int idx = order.next();
+            train.image(idx, act[0], 0);
+            exp[train.label(idx)] = 1;
+            nn.train(act, err, exp, 0.05F);
+            exp[train.label(idx)] = 0;
+        }
+        return Evaluator.errorRate(nn, Main.testingData());
+    }
+}
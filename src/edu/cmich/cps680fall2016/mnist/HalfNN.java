@@ -0,0 +1,216 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.IOException;
+
+/**
+ * An inference-only copy of a trained {@link SimpleNN}, with 16-bit
+ * floating point weights.
+ * <p>
+ * The weights are stored either as IEEE 754 half precision (fp16: 5 exponent
+ * bits, 10 mantissa bits) or as bfloat16 (bf16: the upper half of a float, 8
+ * exponent bits, 7 mantissa bits), and are widened to float as they are used,
+ * so all arithmetic is still done in single precision. This halves the
+ * memory and the memory bandwidth of the weights, which dominates applying a
+ * network one example at a time. fp16 keeps more precision, while bf16 keeps
+ * the range of a float and is cheaper to widen.
+ */
+public class HalfNN {
+
+    /** The number of inputs/neurons in each layer */
+    public final int[] shape;
+
+    /** The activation function between each successive pair of layers. */
+    public final Activation[] actv;
+
+    /** True if the weights are bfloat16, false if they are fp16 */
+    public final boolean bf16;
+
+    /**
+     * Weight matrices for each successive pair of layers, with the same
+     * structure as {@link SimpleNN#weights}.
+     */
+    private final short[][] weights;
+
+    /**
+     * Convert a trained network. Later changes to the network do not affect
+     * this copy.
+     *
+     * @param nn The network to convert
+     * @param bf16 True to store the weights as bfloat16, false for fp16
+     */
+    public HalfNN(SimpleNN nn, boolean bf16) {
+        this.shape = nn.shape.clone();
+        this.actv = nn.actv.clone();
+        this.bf16 = bf16;
+        this.weights = new short[nn.weights.length][];
+        for (int l = 0; l < weights.length; l++) {
+            final float[] w = nn.weights[l];
+            final short[] h = new short[w.length];
+            for (int k = 0; k < w.length; k++) {
+                h[k] = bf16 ? toBFloat16(w[k]) : toHalf(w[k]);
+            }
+            weights[l] = h;
+        }
+    }
+
+    /** Return the memory used by the weights, in bytes */
+    public long weightBytes() {
+        long bytes = 0;
+        for (short[] w : weights) {
+            bytes += 2L * w.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Apply the neural network to an input.
+     *
+     * @param values Value storage from {@link SimpleNN#valueArray()} for a
+     *            network of the same shape
+     * @see SimpleNN#apply(float[][])
+     */
+    public void apply(float[][] values) {
+        assert (values.length == shape.length);
+        for (int l = 0; l < weights.length; l++) {
+            final short[] w = weights[l];
+            final float[] v = values[l];
+            final float[] nv = values[l + 1];
+            final int shapel = shape[l], shapeln = shape[l + 1];
+            if (bf16) {
+                for (int j = 0; j < shapeln; j++) { // bias
+                    nv[j] = bfloat16ToFloat(w[j]);
+                }
+                for (int i = 0; i < shapel; i++) {
+                    final float v_i = v[i];
+                    if (v_i == 0) continue;
+                    for (int j = 0, row = (i + 1) * shapeln; j < shapeln; j++) {
+                        nv[j] += v_i * bfloat16ToFloat(w[row + j]);
+                    }
+                }
+            } else {
+                for (int j = 0; j < shapeln; j++) { // bias
+                    nv[j] = halfToFloat(w[j]);
+                }
+                for (int i = 0; i < shapel; i++) {
+                    final float v_i = v[i];
+                    if (v_i == 0) continue;
+                    for (int j = 0, row = (i + 1) * shapeln; j < shapeln; j++) {
+                        nv[j] += v_i * halfToFloat(w[row + j]);
+                    }
+                }
+            }
+            actv[l].activate(nv, nv);
+        }
+    }
+
+    /**
+     * Return the fraction of the examples in a data set that the network
+     * classifies incorrectly.
+     */
+    public float test(DataSet data) {
+        final float[][] values = new float[shape.length][];
+        for (int l = 0; l < shape.length; l++) {
+            values[l] = new float[shape[l]];
+        }
+        final float[] out = values[shape.length - 1];
+        int errcnt = 0;
+        for (int idx = 0; idx < data.imageCnt; idx++) {
+            data.image(idx, values[0], 0);
+            apply(values);
+            int answer = Metrics.answer(out, 0, out.length);
+            if (answer != data.label(idx)) errcnt++;
+        }
+        return errcnt / (float) data.imageCnt;
+    }
+
+    /**
+     * Convert a float to the nearest IEEE 754 half precision value (rounding
+     * ties to even), returned as its bits.
+     */
+    public static short toHalf(float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7FFFFFFF;
+        if (abs > 0x7F800000) return (short) (sign | 0x7E00); // NaN
+        if (abs >= 0x477FF000) return (short) (sign | 0x7C00); // to infinity
+        if (abs < 0x38800000) {
+            // below the smallest normal half, 2^-14: a multiple of 2^-24
+            return (short) (sign | (int) Math.rint(Float.intBitsToFloat(abs)
+                    * 0x1p24));
+        }
+        // rebias the exponent from 127 to 15, and round off 13 mantissa bits
+        final int h = (abs - (112 << 23)) >>> 13;
+        final int rem = abs & 0x1FFF;
+        final int round = rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0) ? 1
+                : 0;
+        return (short) (sign | (h + round));
+    }
+
+    /** Convert the bits of an IEEE 754 half precision value to a float. */
+    public static float halfToFloat(short h) {
+        final int sign = (h & 0x8000) << 16;
+        final int abs = h & 0x7FFF;
+        if (abs >= 0x7C00) { // infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7F800000 | (abs & 0x3FF) << 13);
+        }
+        // shift into place as a float with exponent bias 15, then rebias to
+        // 127 by multiplying, which also normalizes subnormal halfs
+        return Float.intBitsToFloat(sign | abs << 13) * 0x1p112F;
+    }
+
+    /**
+     * Convert a float to the nearest bfloat16 value (rounding ties to even),
+     * returned as its bits.
+     */
+    public static short toBFloat16(float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        if ((bits & 0x7FFFFFFF) > 0x7F800000) {
+            return (short) ((bits >>> 16) | 0x40); // NaN, keep it quiet
+        }
+        return (short) ((bits + 0x7FFF + ((bits >>> 16) & 1)) >>> 16);
+    }
+
+    /** Convert the bits of a bfloat16 value to a float. */
+    public static float bfloat16ToFloat(short h) {
+        return Float.intBitsToFloat(h << 16);
+    }
+
+    /**
+     * Compare a saved model with its fp16 and bf16 copies on the MNIST test
+     * set, reporting the error rate, weight memory and throughput of each.
+     * <p>
+     * Usage: {@code HalfNN MODELFILE}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("HalfNN MODELFILE");
+            return;
+        }
+        SimpleNN nn = ModelFile.load(args[0]);
+        HalfNN fp16 = new HalfNN(nn, false), bf16 = new HalfNN(nn, true);
+        DataSet test = Main.testingData();
+        long floatBytes = 0;
+        for (float[] w : nn.weights) {
+            floatBytes += 4L * w.length;
+        }
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up
+            long t0 = System.nanoTime();
+            float floatErr = Evaluator.errorRate(nn, test);
+            long t1 = System.nanoTime();
+            float fp16Err = fp16.test(test);
+            long t2 = System.nanoTime();
+            float bf16Err = bf16.test(test);
+            long t3 = System.nanoTime();
+            if (pass == 0) continue;
+            System.out.format("float32: %6.2f%% incorrect, %9d weight bytes,"
+                    + " %8.0f examples/sec\n", floatErr * 100, floatBytes,
+                    test.imageCnt / ((t1 - t0) / 1e9));
+            System.out.format("fp16:    %6.2f%% incorrect, %9d weight bytes,"
+                    + " %8.0f examples/sec\n", fp16Err * 100, fp16
+                            .weightBytes(), test.imageCnt / ((t2 - t1) / 1e9));
+            System.out.format("bf16:    %6.2f%% incorrect, %9d weight bytes,"
+                    + " %8.0f examples/sec\n", bf16Err * 100, bf16
+                            .weightBytes(), test.imageCnt / ((t3 - t2) / 1e9));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Asynchronous ("Hogwild") stochastic trainer for a {@link SimpleNN}.
+ * <p>
+ * Several threads call {@link SimpleNN#train(float[][], float[][], float[],
+ * float)} at the same time against the shared weights, without any locking.
+ * Each thread has its own value arrays, so the only races are on the weights
+ * themselves. Since most MNIST input pixels are zero, most updates touch
+ * disjoint weights and the occasional lost update does little harm.
+ * <p>
+ * Examples come from a shared {@link Sampler}, as in the other training
+ * modes, and are handed out to the workers in chunks of {@link #CHUNK} under a
+ * lock, so every example is used exactly once per epoch. Which worker gets
+ * each chunk, and so the order in which the examples are applied to the
+ * weights, depends on thread scheduling.
+ */
+public class HogwildTrainer {
+
+    /** The network being trained */
+    public final SimpleNN nn;
+
+    /** The number of worker threads */
+    public final int threads;
+
+    /** The number of examples a worker takes from the sampler at a time */
+    public static final int CHUNK = 64;
+
+    private final DataSet data;
+
+    private final Sampler order;
+
+    /** The number of examples handed out so far, guarded by order */
+    private long taken;
+
+    /**
+     * Create a new trainer.
+     *
+     * @param nn The network to train
+     * @param threads The number of worker threads
+     * @param data The training examples
+     * @param order The order to train on examples in
+     */
+    public HogwildTrainer(SimpleNN nn, int threads, DataSet data,
+            Sampler order) {
+        assert (threads > 0);
+        assert (order.size <= data.imageCnt);
+        this.nn = nn;
+        this.threads = threads;
+        this.data = data;
+        this.order = order;
+    }
+
+    /**
+     * Train the network on {@code count} examples, returning once all worker
+     * threads have finished.
+     *
+     * @param count The number of examples to train on
+     * @param rate The back-propagation rate
+     */
+    public void train(final int count, final float rate) {
+        taken = 0;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+
+                @Override public void run() {
+                    float[][] act = nn.valueArray();
+                    float[][] err = nn.valueArray();
+                    float[] exp = new float[nn.shape[nn.shape.length - 1]];
+                    int[] idx = new int[CHUNK];
+                    for (int n; (n = take(idx, count)) > 0;) {
+                        for (int k = 0; k < n; k++) {
+                            byte label = data.label(idx[k]);
+                            data.image(idx[k], act[0], 0);
+                            exp[label] = 1;
+                            nn.train(act, err, exp, rate);
+                            exp[label] = 0;
+                        }
+                    }
+                }
+            }, "hogwild-" + t);
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Take the next chunk of at most {@code idx.length} example indices,
+     * without going past {@code count} examples in all.
+     *
+     * @return The number of indices stored in {@code idx}
+     */
+    private int take(int[] idx, int count) {
+        synchronized (order) {
+            final int n = (int) Math.min(idx.length, count - taken);
+            if (n <= 0) return 0;
+            order.next(idx, 0, n);
+            taken += n;
+            return n;
+        }
+    }
+}
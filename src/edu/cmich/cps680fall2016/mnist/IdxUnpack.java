@@ -0,0 +1,54 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * One-time conversion of gz-compressed MNIST (idx) files to uncompressed
+ * files, which can then be memory-mapped with {@link ImageSet#map(String)}
+ * and {@link LabelSet#map(String)}.
+ */
+public class IdxUnpack {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("mnist-unpack FILE.gz [FILE.gz [ ...]]");
+            System.err.println("    Writes each FILE.gz uncompressed to FILE");
+            return;
+        }
+        for (String gz : args) {
+            if (!gz.endsWith(".gz")) {
+                System.err.println("Skipping " + gz + ": not a .gz file");
+                continue;
+            }
+            String raw = gz.substring(0, gz.length() - 3);
+            long size = unpack(new File(gz), new File(raw));
+            System.err.format("%s -> %s (%d bytes)\n", gz, raw, size);
+        }
+    }
+
+    /**
+     * Decompress a gz-compressed file.
+     *
+     * @param gz The compressed file
+     * @param raw The destination for the uncompressed data
+     * @return The number of uncompressed bytes written
+     * @throws IOException
+     */
+    public static long unpack(File gz, File raw) throws IOException {
+        File tmp = new File(raw.getPath() + ".tmp");
+        long size = 0;
+        try (InputStream in = new GZIPInputStream(new FileInputStream(gz),
+                1 << 16); OutputStream out = new FileOutputStream(tmp)) {
+            byte[] buf = new byte[1 << 16];
+            for (int n; (n = in.read(buf)) > 0; size += n) {
+                out.write(buf, 0, n);
+            }
+        }
+        if (!tmp.renameTo(raw)) {
+            tmp.delete();
+            throw new IOException("Unable to write " + raw);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * A layer of a {@link ConvNN} that maps a stack of 2D images (channels) to
+ * another stack of images.
+ * <p>
+ * Images are stored channel-major, then row-major: the value at row
+ * {@code r}, column {@code c} of channel {@code ch} of a stack of images with
+ * {@code rows * cols} values per channel is at index
+ * {@code (ch * rows + r) * cols + c}.
+ * <p>
+ * A layer holds only its parameters. Any scratch storage it needs is passed
+ * in by the caller, so one layer may be applied by several threads at once,
+ * each with its own storage.
+ */
+public interface ImageLayer {
+
+    /** Return the number of input channels */
+    public int inChannels();
+
+    /** Return the number of rows of each input channel */
+    public int inRows();
+
+    /** Return the number of columns of each input channel */
+    public int inCols();
+
+    /** Return the number of output channels */
+    public int outChannels();
+
+    /** Return the number of rows of each output channel */
+    public int outRows();
+
+    /** Return the number of columns of each output channel */
+    public int outCols();
+
+    /** Return the number of scratch values used by each example */
+    public int scratchSize();
+
+    /**
+     * Compute the output of the layer.
+     *
+     * @param in The input images
+     * @param out Receives the output images
+     * @param scratch Scratch storage of {@link #scratchSize()} values, which
+     *            must be passed unchanged to
+     *            {@link #backward(float[], float[], float[], float[], float[], float)}
+     */
+    public void forward(float[] in, float[] out, float[] scratch);
+
+    /**
+     * Back-propagate the error through the layer, and update its parameters.
+     *
+     * @param in The input images
+     * @param out The output images computed from {@code in} by
+     *            {@link #forward(float[], float[], float[])}
+     * @param err The gradient of the loss with respect to {@code out}. It is
+     *            overwritten.
+     * @param inErr Receives the gradient of the loss with respect to
+     *            {@code in}, or null if it is not needed
+     * @param scratch The scratch storage passed to {@code forward}
+     * @param rate The back-propagation rate
+     */
+    public void backward(float[] in, float[] out, float[] err, float[] inErr,
+            float[] scratch, float rate);
+}
@@ -1,11 +1,15 @@
 package edu.cmich.cps680fall2016.mnist;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
 /**
- * A MNIST image set, parsed from a binary stream.
+ * A MNIST image set, parsed from a binary stream or a memory-mapped file.
  */
 public class ImageSet {
 
@@ -15,6 +19,12 @@ public class ImageSet {
 
     private final DataInputStream in;
 
+    /** Pixel data of a memory-mapped set, or null for a stream */
+    private final ByteBuffer map;
+
+    /** Raw pixels of the last image read, for float conversion */
+    private byte[] buf;
+
     /**
      * Create a new "stream" of images.
      * 
@@ -25,6 +35,35 @@ public class ImageSet {
         this(new GZIPInputStream(fileStream(mnistImageFile), 4096));
     }
 
+    /**
+     * Open a set of images from either a gz-compressed MNIST image file (if
+     * the name ends in ".gz") or an uncompressed one.
+     * 
+     * @param mnistImageFile The name of an MNIST image file
+     * @throws IOException
+     * @see #map(String)
+     */
+    public static ImageSet open(String mnistImageFile) throws IOException {
+        if (mnistImageFile.endsWith(".gz")) return new ImageSet(mnistImageFile);
+        else return map(mnistImageFile);
+    }
+
+    /**
+     * Create a new set of images backed by a memory-mapped, uncompressed MNIST
+     * image file. The set supports random access with {@link #image(int)}.
+     * The file is mapped as a single buffer, so it may be at most 2 GB.
+     * 
+     * @param mnistImageFile The name of an uncompressed MNIST image file
+     * @throws IOException
+     */
+    public static ImageSet map(String mnistImageFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(mnistImageFile),
+                StandardOpenOption.READ)) {
+            return new ImageSet(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch
+                    .size()));
+        }
+    }
+
     private static InputStream fileStream(String filename)
             throws FileNotFoundException {
         File file = new File(filename);
@@ -42,6 +81,7 @@ public class ImageSet {
      */
     public ImageSet(InputStream mnistImageStream) throws IOException {
         this.in = new DataInputStream(mnistImageStream);
+        this.map = null;
         int magic = in.readInt();
         if (magic != 2051)
             throw new IOException(
@@ -52,6 +92,29 @@ public class ImageSet {
         this.colCnt = in.readInt();
     }
 
+    /**
+     * Create a new set of images from a buffer of raw MNIST image data.
+     * 
+     * @param mnistImageBuffer A (big-endian) buffer providing raw MNIST image
+     *            data, starting at its current position
+     * @throws IOException
+     */
+    public ImageSet(ByteBuffer mnistImageBuffer) throws IOException {
+        ByteBuffer buf = mnistImageBuffer.duplicate();
+        this.in = null;
+        int magic = buf.getInt();
+        if (magic != 2051)
+            throw new IOException(
+                    "Invalid magic header: buffer does not "
+                            + "appear to be a valid MNIST image set");
+        this.imageCnt = buf.getInt();
+        this.rowCnt = buf.getInt();
+        this.colCnt = buf.getInt();
+        if (buf.remaining() < (long) imageCnt * rowCnt * colCnt)
+            throw new EOFException("MNIST image set is truncated");
+        this.map = buf.slice();
+    }
+
     /** Return true if there is at least one more image in the set */
     public boolean hasNextImage() {
         return readCnt < imageCnt;
@@ -64,7 +127,8 @@ public class ImageSet {
     public byte[] nextImage(byte[] out) throws IOException {
         if (readCnt >= imageCnt) throw new NoSuchElementException();
         if (out == null) out = new byte[rowCnt * colCnt];
-        in.readFully(out, 0, rowCnt * colCnt);
+        if (map != null) image(readCnt, out, 0);
+        else in.readFully(out, 0, rowCnt * colCnt);
         readCnt++;
         return out;
     }
@@ -74,15 +138,109 @@ public class ImageSet {
      * float in the range [0-1] per pixel, in row-major order.
      */
     public float[] nextImage(float[] out) throws IOException {
-        if (readCnt >= imageCnt) throw new NoSuchElementException();
         if (out == null) out = new float[rowCnt * colCnt];
+        return nextImage(out, 0);
+    }
+
+    /**
+     * Store the next image in {@code out} starting at offset {@code off}, as
+     * {@code rowCnt*colCnt} pixels, one float in the range [0-1] per pixel,
+     * in row-major order.
+     */
+    public float[] nextImage(float[] out, int off) throws IOException {
+        buf = nextImage(buf);
         for (int i = 0; i < rowCnt * colCnt; i++) {
-            out[i] = in.readUnsignedByte() / 255F;
+            out[off + i] = (buf[i] & 0xFF) / 255F;
         }
-        readCnt++;
         return out;
     }
 
+    /**
+     * Read the next {@code cnt} images into {@code out} starting at offset
+     * {@code off}, as consecutive arrays of {@code rowCnt*colCnt} pixels, one
+     * unsigned byte per pixel, in row-major order.
+     */
+    public byte[] nextImages(byte[] out, int off, int cnt) throws IOException {
+        if (cnt > imageCnt - readCnt) throw new NoSuchElementException();
+        if (map != null) {
+            ByteBuffer src = map.duplicate();
+            src.position(readCnt * rowCnt * colCnt);
+            src.get(out, off, cnt * rowCnt * colCnt);
+        } else {
+            in.readFully(out, off, cnt * rowCnt * colCnt);
+        }
+        readCnt += cnt;
+        return out;
+    }
+
+    /**
+     * Return the next {@code cnt} images as a read-only view of consecutive
+     * arrays of {@code rowCnt*colCnt} pixels, one unsigned byte per pixel, in
+     * row-major order. No pixel data is copied. Only supported by
+     * memory-mapped sets.
+     */
+    public ByteBuffer nextImages(int cnt) {
+        if (map == null) throw new UnsupportedOperationException(
+                "Views require a memory-mapped image set");
+        if (cnt > imageCnt - readCnt) throw new NoSuchElementException();
+        ByteBuffer view = map.asReadOnlyBuffer();
+        view.position(readCnt * rowCnt * colCnt);
+        view.limit((readCnt + cnt) * rowCnt * colCnt);
+        readCnt += cnt;
+        return view.slice();
+    }
+
+    /** Return true if this set supports random access to images by index */
+    public boolean isMapped() {
+        return map != null;
+    }
+
+    /**
+     * Return image {@code idx} as a read-only view of {@code rowCnt*colCnt}
+     * pixels, one unsigned byte per pixel, in row-major order. No pixel data
+     * is copied. Only supported by memory-mapped sets.
+     */
+    public ByteBuffer image(int idx) {
+        if (map == null) throw new UnsupportedOperationException(
+                "Random access requires a memory-mapped image set");
+        if (idx < 0 || idx >= imageCnt) throw new NoSuchElementException();
+        ByteBuffer view = map.asReadOnlyBuffer();
+        view.position(idx * rowCnt * colCnt);
+        view.limit((idx + 1) * rowCnt * colCnt);
+        return view.slice();
+    }
+
+    /**
+     * Store image {@code idx} in {@code out} starting at offset {@code off},
+     * as {@code rowCnt*colCnt} pixels, one unsigned byte per pixel, in
+     * row-major order. Only supported by memory-mapped sets.
+     */
+    public byte[] image(int idx, byte[] out, int off) {
+        image(idx).get(out, off, rowCnt * colCnt);
+        return out;
+    }
+
+    /**
+     * Store image {@code idx} in {@code out} starting at offset {@code off},
+     * as {@code rowCnt*colCnt} pixels, one float in the range [0-1] per pixel,
+     * in row-major order. Only supported by memory-mapped sets.
+     */
+    public float[] image(int idx, float[] out, int off) {
+        if (map == null) throw new UnsupportedOperationException(
+                "Random access requires a memory-mapped image set");
+        if (idx < 0 || idx >= imageCnt) throw new NoSuchElementException();
+        final int base = idx * rowCnt * colCnt;
+        for (int i = 0; i < rowCnt * colCnt; i++) {
+            out[off + i] = (map.get(base + i) & 0xFF) / 255F;
+        }
+        return out;
+    }
+
+    /** Return the number of images remaining in the set */
+    public int remaining() {
+        return imageCnt - readCnt;
+    }
+
     /** Return the 0-based array offset of the pixel at (r,c) */
     public int idx(int r, int c) {
         assert (r >= 0 && r < rowCnt);
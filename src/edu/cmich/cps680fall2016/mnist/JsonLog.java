@@ -0,0 +1,83 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.PrintStream;
+import java.lang.reflect.Array;
+
+/**
+ * Machine-readable progress output, written as one JSON object per line.
+ * <p>
+ * Every line has an {@code "event"} name and the {@code "time"} in seconds
+ * since the log was created, followed by the fields of the event, e.g.:
+ *
+ * <pre>
+ * {"event":"progress","time":1.25,"examples":5000,"examples_per_sec":4000.0}
+ * </pre>
+ */
+public class JsonLog {
+
+    private final PrintStream out;
+
+    private final long start = System.nanoTime();
+
+    /**
+     * Create a new log.
+     *
+     * @param out The stream to write lines to
+     */
+    public JsonLog(PrintStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Write an event.
+     *
+     * @param event The name of the event
+     * @param fields Alternating field names and values. Values may be
+     *            strings, numbers (non-finite numbers are written as
+     *            {@code null}), booleans, null, or arrays of any of these.
+     */
+    public void event(String event, Object... fields) {
+        assert (fields.length % 2 == 0);
+        StringBuilder sb = new StringBuilder("{\"event\":");
+        value(sb, event);
+        sb.append(",\"time\":");
+        value(sb, (System.nanoTime() - start) / 1e9);
+        for (int f = 0; f < fields.length; f += 2) {
+            sb.append(',');
+            value(sb, fields[f].toString());
+            sb.append(':');
+            value(sb, fields[f + 1]);
+        }
+        sb.append('}');
+        synchronized (out) {
+            out.println(sb);
+            out.flush();
+        }
+    }
+
+    private static void value(StringBuilder sb, Object v) {
+        if (v == null) {
+            sb.append("null");
+        } else if (v instanceof Double || v instanceof Float) {
+            double d = ((Number) v).doubleValue();
+            sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : v);
+        } else if (v instanceof Number || v instanceof Boolean) {
+            sb.append(v);
+        } else if (v.getClass().isArray()) {
+            sb.append('[');
+            for (int i = 0; i < Array.getLength(v); i++) {
+                if (i > 0) sb.append(',');
+                value(sb, Array.get(v, i));
+            }
+            sb.append(']');
+        } else {
+            sb.append('"');
+            for (char c : v.toString().toCharArray()) {
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+}
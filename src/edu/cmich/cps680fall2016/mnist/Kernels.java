@@ -0,0 +1,51 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Inner-loop vector kernels used by {@link SimpleNN}.
+ * <p>
+ * This class holds the plain scalar implementation, which the JIT may or may
+ * not auto-vectorize. If the {@code jdk.incubator.vector} module is available
+ * at runtime (i.e. the JVM was started with
+ * {@code --add-modules jdk.incubator.vector}), {@link #INSTANCE} is instead
+ * an explicitly vectorized subclass. Set the system property
+ * {@code mnist.kernels=scalar} to force the scalar implementation.
+ */
+class Kernels {
+
+    /** The fastest available implementation */
+    static final Kernels INSTANCE = select();
+
+    private static Kernels select() {
+        if ("scalar".equals(System.getProperty("mnist.kernels"))) {
+            return new Kernels();
+        }
+        try {
+            return (Kernels) Class.forName(
+                    "edu.cmich.cps680fall2016.mnist.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // vector module or compiled vector kernels not available
+            return new Kernels();
+        }
+    }
+
+    /** Compute {@code y[yoff+j] += a * x[xoff+j]} for {@code j} in [0,n) */
+    void axpy(float a, float[] x, int xoff, float[] y, int yoff, int n) {
+        for (int j = 0; j < n; j++) {
+            y[yoff + j] += a * x[xoff + j];
+        }
+    }
+
+    /** Return the sum of {@code x[xoff+j] * y[yoff+j]} for {@code j} in [0,n) */
+    float dot(float[] x, int xoff, float[] y, int yoff, int n) {
+        float sum = 0;
+        for (int j = 0; j < n; j++) {
+            sum += x[xoff + j] * y[yoff + j];
+        }
+        return sum;
+    }
+
+    @Override public String toString() {
+        return "scalar";
+    }
+}
@@ -1,11 +1,16 @@
 package edu.cmich.cps680fall2016.mnist;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.NoSuchElementException;
 import java.util.zip.GZIPInputStream;
 
 /**
- * A MNIST image label set, parsed from a binary stream.
+ * A MNIST image label set, parsed from a binary stream or a memory-mapped
+ * file.
  */
 public class LabelSet {
 
@@ -15,6 +20,9 @@ public class LabelSet {
 
     private final DataInputStream in;
 
+    /** Label data of a memory-mapped set, or null for a stream */
+    private final ByteBuffer map;
+
     /**
      * Create a new "stream" of labels.
      * 
@@ -25,6 +33,35 @@ public class LabelSet {
         this(new GZIPInputStream(fileStream(mnistLabelFile)));
     }
 
+    /**
+     * Open a set of labels from either a gz-compressed MNIST label file (if
+     * the name ends in ".gz") or an uncompressed one.
+     * 
+     * @param mnistLabelFile The name of an MNIST label file
+     * @throws IOException
+     * @see #map(String)
+     */
+    public static LabelSet open(String mnistLabelFile) throws IOException {
+        if (mnistLabelFile.endsWith(".gz")) return new LabelSet(mnistLabelFile);
+        else return map(mnistLabelFile);
+    }
+
+    /**
+     * Create a new set of labels backed by a memory-mapped, uncompressed MNIST
+     * label file. The set supports random access with {@link #label(int)}.
+     * The file is mapped as a single buffer, so it may be at most 2 GB.
+     * 
+     * @param mnistLabelFile The name of an uncompressed MNIST label file
+     * @throws IOException
+     */
+    public static LabelSet map(String mnistLabelFile) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(mnistLabelFile),
+                StandardOpenOption.READ)) {
+            return new LabelSet(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch
+                    .size()));
+        }
+    }
+
     private static InputStream fileStream(String filename)
             throws FileNotFoundException {
         File file = new File(filename);
@@ -42,6 +79,7 @@ public class LabelSet {
      */
     public LabelSet(InputStream mnistLabelStream) throws IOException {
         this.in = new DataInputStream(mnistLabelStream);
+        this.map = null;
         int magic = in.readInt();
         if (magic != 2049)
             throw new IOException(
@@ -50,6 +88,27 @@ public class LabelSet {
         this.labelCnt = in.readInt();
     }
 
+    /**
+     * Create a new set of labels from a buffer of raw MNIST label data.
+     * 
+     * @param mnistLabelBuffer A (big-endian) buffer providing raw MNIST label
+     *            data, starting at its current position
+     * @throws IOException
+     */
+    public LabelSet(ByteBuffer mnistLabelBuffer) throws IOException {
+        ByteBuffer buf = mnistLabelBuffer.duplicate();
+        this.in = null;
+        int magic = buf.getInt();
+        if (magic != 2049)
+            throw new IOException(
+                    "Invalid magic header: buffer does not "
+                            + "appear to be a valid MNIST label set");
+        this.labelCnt = buf.getInt();
+        if (buf.remaining() < labelCnt)
+            throw new EOFException("MNIST label set is truncated");
+        this.map = buf.slice();
+    }
+
     /** Return true if there is at least one more label in the set */
     public boolean hasNextLabel() {
         return readCnt < labelCnt;
@@ -58,8 +117,61 @@ public class LabelSet {
     /** Return the next label in the set, as byte value 0-9. */
     public byte nextLabel() throws IOException {
         if (readCnt >= labelCnt) throw new NoSuchElementException();
-        byte val = in.readByte();
+        byte val = map != null ? map.get(readCnt) : in.readByte();
         readCnt++;
         return val;
     }
+
+    /**
+     * Read the next {@code cnt} labels into {@code out} starting at offset
+     * {@code off}, as byte values 0-9.
+     */
+    public byte[] nextLabels(byte[] out, int off, int cnt) throws IOException {
+        if (cnt > labelCnt - readCnt) throw new NoSuchElementException();
+        if (map != null) {
+            ByteBuffer src = map.duplicate();
+            src.position(readCnt);
+            src.get(out, off, cnt);
+        } else {
+            in.readFully(out, off, cnt);
+        }
+        readCnt += cnt;
+        return out;
+    }
+
+    /**
+     * Return the next {@code cnt} labels as a read-only view of byte values
+     * 0-9. No label data is copied. Only supported by memory-mapped sets.
+     */
+    public ByteBuffer nextLabels(int cnt) {
+        if (map == null) throw new UnsupportedOperationException(
+                "Views require a memory-mapped label set");
+        if (cnt > labelCnt - readCnt) throw new NoSuchElementException();
+        ByteBuffer view = map.asReadOnlyBuffer();
+        view.position(readCnt);
+        view.limit(readCnt + cnt);
+        readCnt += cnt;
+        return view.slice();
+    }
+
+    /** Return true if this set supports random access to labels by index */
+    public boolean isMapped() {
+        return map != null;
+    }
+
+    /**
+     * Return label {@code idx}, as byte value 0-9. Only supported by
+     * memory-mapped sets.
+     */
+    public byte label(int idx) {
+        if (map == null) throw new UnsupportedOperationException(
+                "Random access requires a memory-mapped label set");
+        if (idx < 0 || idx >= labelCnt) throw new NoSuchElementException();
+        return map.get(idx);
+    }
+
+    /** Return the number of labels remaining in the set */
+    public int remaining() {
+        return labelCnt - readCnt;
+    }
 }
@@ -141,4 +141,77 @@ public interface Loss {
             return "softmax/cross-entropy";
         }
     };
+
+    /**
+     * Cross-entropy, computed with {@link FastMath} in single precision.
+     * 
+     * @see #CROSS_ENTROPY
+     */
+    public static Loss FAST_CROSS_ENTROPY = new Loss() {
+
+        @Override public float loss(float[] in, float[] expected) {
+            float loss = 0;
+            for (int k = 0; k < in.length; k++) {
+                if (expected[k] != 0) loss -= expected[k] * FastMath.log(in[k]);
+            }
+            return loss;
+        }
+
+        @Override public void gradient(float[] in, float[] expected, float[] out) {
+            CROSS_ENTROPY.gradient(in, expected, out);
+        }
+
+        @Override public String toString() {
+            return "cross-entropy (fast)";
+        }
+    };
+
+    /**
+     * Cross-entropy with respect to the softmax of the input, computed with
+     * {@link FastMath} in single precision.
+     * 
+     * @see #SOFTMAX_CROSS_ENTROPY
+     */
+    public static Loss FAST_SOFTMAX_CROSS_ENTROPY = new Loss() {
+
+        @Override public float loss(float[] in, float[] expected) {
+            // As for SOFTMAX_CROSS_ENTROPY, but with the exponents shifted by
+            // max(z) to avoid overflow:
+            //  L(e,z) = - SUM over all k of: e_k * (z_k - max)
+            //              + log(N') * SUM over all k of: e_k
+            // where:
+            //      N' = SUM over all i of: exp(z_i - max)
+            float max = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < in.length; k++) {
+                max = Math.max(max, in[k]);
+            }
+            float norm = 0, dot = 0, sum = 0;
+            for (int k = 0; k < in.length; k++) {
+                sum += expected[k];
+                norm += FastMath.exp(in[k] - max);
+                dot += expected[k] * (in[k] - max);
+            }
+            return sum * FastMath.log(norm) - dot;
+        }
+
+        @Override public void gradient(float[] in, float[] expected, float[] out) {
+            float max = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < in.length; k++) {
+                max = Math.max(max, in[k]);
+            }
+            float norm = 0, sum = 0;
+            for (int k = 0; k < in.length; k++) {
+                sum += expected[k];
+                norm += FastMath.exp(in[k] - max);
+            }
+            final float scale = sum / norm;
+            for (int j = 0; j < out.length; j++) {
+                out[j] = FastMath.exp(in[j] - max) * scale - expected[j];
+            }
+        }
+
+        @Override public String toString() {
+            return "softmax/cross-entropy (fast)";
+        }
+    };
 }
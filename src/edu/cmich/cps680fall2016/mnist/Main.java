@@ -3,12 +3,21 @@ package edu.cmich.cps680fall2016.mnist;
 import static edu.cmich.cps680fall2016.mnist.Activation.*;
 import static edu.cmich.cps680fall2016.mnist.LogWindow.*;
 import static edu.cmich.cps680fall2016.mnist.Loss.*;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
 
 public class Main {
 
-    public static LogWindow out;
+    /** Human-readable output: the log window, or stderr if headless */
+    public static PrintStream out;
+
+    /** The log window, or null if headless */
+    private static LogWindow window;
+
+    /** Machine-readable output if headless, or null */
+    private static JsonLog log;
 
     public static void main(String[] args) throws IOException {
 
@@ -16,14 +25,85 @@ public class Main {
         final int[] shape;
         final int[] widths;
         final Activation[] actv;
-        final Loss loss;
+        Loss loss;
         final int trainingcnt;
         final float learningrate;
+        final int batchsize;
+        final int threads;
+        final int hogwild;
+        final long seed;
+        final String loadfile, savefile;
+        final String ckptfile;
+        final long ckptevery;
+        final double ckptsecs;
+        final boolean resume;
+        final boolean int8, half;
+        final boolean headless;
+        final boolean sparse;
+        final String optname;
+        final float momentum;
+        Schedule schedule;
+        final int holdout;
+        final long validate;
+        final int patience;
+        final String convspec;
+        final Random rand;
+        ImageLayer[] front = null;
 
         // parse arguments
         try {
-            // number of layers
             Exception error = new RuntimeException();
+            // options
+            Map<String, String> opts = new HashMap<>();
+            int optcnt = 0;
+            for (; optcnt < args.length && args[optcnt].startsWith("-"); optcnt++) {
+                String[] opt = args[optcnt].substring(1).split("=", 2);
+                opts.put(opt[0], opt.length > 1 ? opt[1] : "");
+            }
+            args = Arrays.copyOfRange(args, optcnt, args.length);
+            batchsize = Integer.parseInt(opts.getOrDefault("batch", "1"));
+            if (batchsize < 1) throw error;
+            threads = Integer.parseInt(opts.getOrDefault("threads", "1"));
+            if (threads < 1) throw error;
+            hogwild = Integer.parseInt(opts.getOrDefault("hogwild", "0"));
+            if (hogwild < 0) throw error;
+            if (opts.containsKey("seed")) seed = Long.parseLong(opts.get("seed"));
+            else seed = new Random().nextLong();
+            loadfile = opts.get("load");
+            savefile = opts.get("save");
+            if ("".equals(loadfile) || "".equals(savefile)) throw error;
+            ckptfile = opts.get("checkpoint");
+            ckptevery = Long.parseLong(opts.getOrDefault("ckptevery", "0"));
+            ckptsecs = Double.parseDouble(opts.getOrDefault("ckptsecs",
+                    ckptevery > 0 ? "0" : "60"));
+            resume = opts.containsKey("resume");
+            int8 = opts.containsKey("int8");
+            half = opts.containsKey("half");
+            headless = opts.containsKey("headless");
+            sparse = opts.containsKey("sparse");
+            optname = opts.getOrDefault("optimizer", "sgd");
+            if (!Arrays.asList("sgd", "momentum", "nesterov", "adam").contains(
+                    optname)) throw error;
+            momentum = Float.parseFloat(opts.getOrDefault("momentum", "0.9"));
+            if (!(momentum >= 0 && momentum < 1)) throw error;
+            if (!"sgd".equals(optname) && hogwild > 0) throw error;
+            holdout = Integer.parseInt(opts.getOrDefault("holdout", "0"));
+            validate = Long.parseLong(opts.getOrDefault("validate", "10000"));
+            patience = Integer.parseInt(opts.getOrDefault("patience", "3"));
+            if (holdout < 0 || validate < 1 || patience < 1) throw error;
+            if (holdout > 0 && hogwild > 0) throw error;
+            convspec = opts.get("conv");
+            if (convspec != null && (batchsize > 1 || threads > 1
+                    || hogwild > 0 || !"sgd".equals(optname) || loadfile != null
+                    || savefile != null || ckptfile != null || int8 || half
+                    || sparse || holdout > 0)) throw error;
+            if ("".equals(ckptfile) || ckptevery < 0 || ckptsecs < 0)
+                throw error;
+            if (resume && ckptfile == null) throw error;
+            if (ckptfile != null && hogwild > 0) throw error;
+            // checkpoints do not hold optimizer state (velocity, moments)
+            if (ckptfile != null && !"sgd".equals(optname)) throw error;
+            // number of layers
             lmax = (args.length - 4) / 2;
             if (lmax * 2 + 4 != args.length) throw error;
             if (lmax < 1) throw error;
@@ -38,12 +118,20 @@ public class Main {
             }
             if (shape[0] != 28 * 28) throw error;
             if (shape[lmax] != 10) throw error;
+            rand = new Random(seed);
+            if (convspec != null) {
+                front = convLayers(convspec, 1, 28, 28, rand);
+                ImageLayer last = front[front.length - 1];
+                widths[0] = last.outCols();
+                shape[0] = last.outChannels() * last.outRows() * widths[0];
+            }
             // activation functions
             actv = new Activation[lmax];
             for (int i = 0; i < lmax; i++) {
                 String a = args[2 * i + 1];
                 if ("pass".equals(a)) actv[i] = PASSTHROUGH;
                 else if ("logistic".equals(a)) actv[i] = LOGISTIC;
+                else if ("relu".equals(a)) actv[i] = RELU;
                 else if ("softmax".equals(a)) actv[i] = SOFTMAX;
                 else throw error;
             }
@@ -53,48 +141,334 @@ public class Main {
             else if ("cross".equals(l)) loss = CROSS_ENTROPY;
             else if ("softcross".equals(l)) loss = SOFTMAX_CROSS_ENTROPY;
             else throw error;
+            // single-precision approximations
+            if (opts.containsKey("fastmath")) {
+                for (int i = 0; i < lmax; i++) {
+                    if (actv[i] == LOGISTIC) actv[i] = FAST_LOGISTIC;
+                    else if (actv[i] == SOFTMAX) actv[i] = FAST_SOFTMAX;
+                }
+                if (loss == CROSS_ENTROPY) loss = FAST_CROSS_ENTROPY;
+                else if (loss == SOFTMAX_CROSS_ENTROPY) {
+                    loss = FAST_SOFTMAX_CROSS_ENTROPY;
+                }
+            }
             // training params
             trainingcnt = Integer.parseInt(args[args.length - 2]);
+            if (trainingcnt < 0) throw error;
             learningrate = Float.parseFloat(args[args.length - 1]);
+            // learning rate schedule
+            String sched = opts.getOrDefault("schedule", "constant");
+            if ("constant".equals(sched)) {
+                schedule = Schedule.constant(learningrate);
+            } else if ("step".equals(sched)) {
+                long stepsize = Long.parseLong(opts.getOrDefault("stepsize",
+                        Integer.toString(Math.max(1, trainingcnt / 3))));
+                float stepdecay = Float.parseFloat(opts.getOrDefault(
+                        "stepdecay", "0.1"));
+                if (stepsize < 1) throw error;
+                schedule = Schedule.step(learningrate, stepsize, stepdecay);
+            } else if ("cosine".equals(sched)) {
+                schedule = Schedule.cosine(learningrate, Math.max(1,
+                        trainingcnt));
+            } else throw error;
+            long warmup = Long.parseLong(opts.getOrDefault("warmup", "0"));
+            if (warmup < 0) throw error;
+            if (warmup > 0) schedule = Schedule.warmup(schedule, warmup);
+            if (!schedule.isConstant() && hogwild > 0) throw error;
         } catch (Exception e) {
-            String[] usage = { "mnist", "INPUT",
+            String[] usage = { "mnist", "[OPTIONS]", "INPUT",
                     "[ACTIV1 HIDDEN1 [ACTIV2 HIDDEN2 [ ...]]]", "ACTIVOUT",
                     "OUTPUT", "LOSS", "TRAINCNT", "LRATE" };
             String[] argdesc = { //
                     "INPUT:    size of input                 28*28", //
-                    "ACTIV_:   activation function           pass | logistic | softmax", //
+                    "ACTIV_:   activation function           pass | logistic | relu | softmax", //
                     "HIDDEN_:  size of hidden layer          <width>*<height>", //
                     "OUTPUT:   size of output layer          10*1", //
                     "LOSS:     loss function                 mse | cross | softcross", //
-                    "TRAINCNT: number of training examples   <any positive integer>", //
+                    "TRAINCNT: number of training examples   <any non-negative integer>", //
                     "LRATE:    learning rate                 <float between 0 and 1>" //
             };
+            String[] optdesc = { //
+                    "-batch=N:         train on mini-batches of N examples (default 1)", //
+                    "-threads=N:       split each mini-batch across N threads (default 1)", //
+                    "-hogwild=N:       train on N threads without locking (no mini-batches)", //
+                    "-seed=N:          seed for weights and example order (default random)", //
+                    "-fastmath:        use fast single-precision exp/log (see FastMath)", //
+                    "-sparse:          skip zero input pixels (no input-layer error)", //
+                    "-optimizer=NAME:  sgd | momentum | nesterov | adam (default sgd)", //
+                    "-momentum=MU:     momentum of momentum/nesterov (default 0.9)", //
+                    "-schedule=NAME:   LRATE schedule: constant | step | cosine", //
+                    "-stepsize=N:      examples between step decays (default TRAINCNT/3)", //
+                    "-stepdecay=F:     factor to scale LRATE by at each step (default 0.1)", //
+                    "-warmup=N:        ramp LRATE up from 0 over the first N examples", //
+                    "-holdout=N:       validate on the last N training examples, not train", //
+                    "-validate=N:      validate every N examples (default 10000)", //
+                    "-patience=P:      stop after P validations without improvement (default 3)", //
+                    "-conv=SPEC:       convolutional front end before the dense layers, e.g.", //
+                    "                  8c5,p2 (8 5x5 relu kernels, then 2x2 max-pooling);", //
+                    "                  single-example SGD only: no -batch, -threads, -hogwild,", //
+                    "                  -optimizer, -sparse, -holdout, -load, -save, -checkpoint,", //
+                    "                  -int8 or -half", //
+                    "-load=FILE:       start from a saved model instead of random weights", //
+                    "-save=FILE:       save the model to FILE after training", //
+                    "-checkpoint=FILE: periodically save the model and progress to FILE", //
+                    "-ckptevery=N:     checkpoint every N examples", //
+                    "-ckptsecs=T:      checkpoint every T seconds (default 60 unless -ckptevery)", //
+                    "-resume:          continue training from the checkpoint, if it exists", //
+                    "-int8:            also test an 8-bit quantized copy (see QuantizedNN)", //
+                    "-half:            also test fp16 and bf16 copies (see HalfNN)", //
+                    "-headless:        no window; JSON lines on stdout, text on stderr" //
+            };
             System.err.println(String.join(" ", usage));
             System.err.println("    " + String.join("\n    ", argdesc));
+            System.err.println("OPTIONS:");
+            System.err.println("    " + String.join("\n    ", optdesc));
             return;
         }
 
-        out = new LogWindow("MNIST Output Log");
-        out.printhr("Network Parameters");
-        SimpleNN nn = new SimpleNN(shape, actv, loss, new Random());
-        printShape(nn, widths);
+        if (headless) {
+            System.setProperty("java.awt.headless", "true");
+            out = System.err;
+            log = new JsonLog(System.out);
+        } else {
+            out = window = new LogWindow("MNIST Output Log");
+        }
+        printhr("Network Parameters");
+        ModelFile.TrainingState state = null;
+        String modelfile = loadfile;
+        if (resume && new File(ckptfile).isFile()) {
+            state = ModelFile.loadState(ckptfile);
+            modelfile = ckptfile;
+        }
+        SimpleNN nn;
+        if (modelfile != null) {
+            nn = ModelFile.load(modelfile);
+            if (!Arrays.equals(nn.shape, shape)) {
+                throw new IOException("Model shape " + Arrays.toString(
+                        nn.shape) + " does not match " + Arrays.toString(shape)
+                        + ": " + modelfile);
+            }
+        } else {
+            nn = new SimpleNN(shape, actv, loss, rand);
+        }
+        nn.sparseInput = sparse;
+        final Optimizer opt;
+        if ("momentum".equals(optname)) opt = Optimizer.momentum(nn, momentum);
+        else if ("nesterov".equals(optname)) {
+            opt = Optimizer.nesterov(nn, momentum);
+        } else if ("adam".equals(optname)) {
+            opt = Optimizer.adam(nn, 0.9F, 0.999F, 1e-8F);
+        } else opt = Optimizer.sgd(nn);
+        final ConvNN cnn = front != null ? new ConvNN(front, nn) : null;
+        if (cnn != null) {
+            // the front end output is dense, unlike the mostly zero pixels
+            // the default weights suit, so scale them to a standard deviation
+            // of 1/sqrt(inputs) to keep the first head layer from saturating
+            final float scale = (float) (2 / Math.sqrt(shape[0]));
+            for (int k = 0; k < nn.weights[0].length; k++) {
+                nn.weights[0][k] *= scale;
+            }
+        }
+        if (window != null) printShape(nn, widths);
+        if (cnn != null) {
+            out.format("Front end: %s, %d weights in all\n", Arrays.toString(
+                    front), cnn.weightCount());
+        }
+        if (modelfile != null) out.format("Loaded model from %s\n", modelfile);
+        final long orderseed = state != null ? state.seed : seed;
+        out.format("Random seed: %d\n", orderseed);
 
-        out.printhr("Training ...");
-        out.format("%d examples with rate = %f\n", trainingcnt, learningrate);
-        train(nn, trainingcnt, learningrate);
+        printhr("Training ...");
+        final int done = state != null ? (int) Math.min(state.examples,
+                trainingcnt) : 0;
+        final int count = trainingcnt - done;
+        if (log != null) {
+            log.event("config", "shape", nn.shape, "activations", nn.actv,
+                    "loss", nn.loss, "seed", orderseed, "rate", learningrate,
+                    "examples", trainingcnt, "resumed", done, "batch",
+                    batchsize, "threads", threads, "hogwild", hogwild,
+                    "sparse", sparse, "optimizer", opt, "schedule", schedule,
+                    "holdout", holdout, "conv", convspec);
+        }
+        if (done > 0) {
+            out.format("resuming after %d of %d examples\n", done,
+                    trainingcnt);
+        }
+        out.format("%d examples with rate = %f (%s, %s schedule)\n", count,
+                learningrate, opt, schedule);
+        if (done > 0) schedule = Schedule.after(schedule, done);
+        long trainstart = System.nanoTime();
+        int trained = count;
+        if (count == 0) {
+            // nothing to train, e.g. only testing a loaded model
+        } else if (cnn != null) {
+            Sampler order = new Sampler(trainingData().imageCnt, orderseed);
+            trained = trainConv(cnn, order, count, schedule);
+        } else if (hogwild > 0) {
+            out.format("asynchronous training on %d threads\n", hogwild);
+            Sampler order = new Sampler(trainingData().imageCnt, orderseed);
+            new HogwildTrainer(nn, hogwild, trainingData(), order).train(
+                    count, learningrate);
+        } else {
+            final DataSet data = trainingData();
+            if (holdout >= data.imageCnt) {
+                throw new IOException("Cannot hold out " + holdout + " of "
+                        + data.imageCnt + " training examples");
+            }
+            Sampler order = new Sampler(data.imageCnt - holdout, orderseed);
+            if (state != null) order.seek(state.epoch, state.position);
+            EarlyStopping stop = null;
+            if (holdout > 0) {
+                out.format("validating on %d held-out examples\n", holdout);
+                stop = new EarlyStopping(nn, data, order.size, holdout,
+                        validate, patience, Runtime.getRuntime()
+                                .availableProcessors());
+            }
+            Checkpointer ckpt = null;
+            if (ckptfile != null) {
+                out.format("checkpointing to %s\n", ckptfile);
+                ckpt = new Checkpointer(nn, order, done, ckptfile, ckptevery,
+                        ckptsecs);
+            }
+            if (batchsize > 1 || threads > 1 || !"sgd".equals(optname)) {
+                // plain SGD on single examples is fused into backprop
+                out.format("mini-batches of %d examples on %d threads\n",
+                        batchsize, threads);
+                trained = trainBatch(nn, order, count, batchsize, threads,
+                        schedule, opt, ckpt, stop);
+            } else {
+                trained = train(nn, order, count, schedule, ckpt, stop);
+            }
+            // the final checkpoint holds the weights after every trained
+            // example, to resume from, not the best ones early stopping keeps
+            if (ckpt != null) ckpt.close(trained);
+            if (stop != null) {
+                if (trained < count) {
+                    out.format("stopping early after %d examples\n", trained);
+                }
+                if (stop.finish(trained)) validated(stop, trained);
+                out.format("keeping the weights after %d examples\n",
+                        stop.bestExamples);
+            }
+        }
+        double trainsecs = (System.nanoTime() - trainstart) / 1e9;
+        out.format("Trained in %.2f seconds (%.0f examples/sec)\n", trainsecs,
+                trained / trainsecs);
+        if (log != null) {
+            log.event("train", "examples", trained, "seconds", trainsecs,
+                    "examples_per_sec", trained / trainsecs);
+        }
+        if (savefile != null) {
+            ModelFile.save(nn, savefile);
+            out.format("Saved model to %s\n", savefile);
+        }
 
-        out.printhr("Trained Weights ...");
-        printWeights(nn, widths, 10);
+        if (window != null && cnn == null) {
+            printhr("Trained Weights ...");
+            printWeights(nn, widths, 10);
 
-        out.printhr("Example Tests ...");
-        printTests(nn, widths, 10);
+            printhr("Example Tests ...");
+            printTests(nn, widths, 10);
+        }
 
-        out.printhr("Testing ...");
-        float err = test(nn, 10000);
+        printhr("Testing ...");
+        long teststart = System.nanoTime();
+        Metrics metrics = cnn != null ? cnn.test(testingData(), 10000)
+                : test(nn, 10000);
+        double testsecs = (System.nanoTime() - teststart) / 1e9;
+        float err = metrics.errorRate();
+        printMetrics(metrics);
+        out.format("Tested in %.2f seconds (%.0f examples/sec)\n", testsecs,
+                metrics.count / testsecs);
+        out.format("Mean Loss: %.4f\n", metrics.meanLoss());
         out.format("Error Rate: %6.2f%% incorrect\n", err * 100F);
-        
-        out.writePNG(System.out);
-        out.anyKeyToClose();
+        if (log != null) {
+            double[] precision = new double[metrics.classes];
+            double[] recall = new double[metrics.classes];
+            for (int k = 0; k < metrics.classes; k++) {
+                precision[k] = metrics.precision(k);
+                recall[k] = metrics.recall(k);
+            }
+            log.event("test", "examples", metrics.count, "seconds", testsecs,
+                    "examples_per_sec", metrics.count / testsecs,
+                    "error_rate", err, "mean_loss", metrics.meanLoss(),
+                    "precision", precision, "recall", recall, "confusion",
+                    metrics.confusion);
+        }
+        if (int8) {
+            QuantizedNN qnn = new QuantizedNN(nn);
+            float qerr = qnn.test(testingData());
+            out.format("int8 Error Rate: %6.2f%% incorrect (%+.2f%%), "
+                    + "%d weight bytes\n", qerr * 100F, (qerr - err) * 100F,
+                    qnn.weightBytes());
+            if (log != null) {
+                log.event("test_int8", "error_rate", qerr, "weight_bytes", qnn
+                        .weightBytes());
+            }
+        }
+        if (half) {
+            for (boolean bf16 : new boolean[] { false, true }) {
+                HalfNN hnn = new HalfNN(nn, bf16);
+                float herr = hnn.test(testingData());
+                String name = bf16 ? "bf16" : "fp16";
+                out.format("%s Error Rate: %6.2f%% incorrect (%+.2f%%), "
+                        + "%d weight bytes\n", name, herr * 100F,
+                        (herr - err) * 100F, hnn.weightBytes());
+                if (log != null) {
+                    log.event("test_" + name, "error_rate", herr,
+                            "weight_bytes", hnn.weightBytes());
+                }
+            }
+        }
+
+        if (window != null) {
+            window.writePNG(System.out);
+            window.anyKeyToClose();
+        } else {
+            log.event("done");
+        }
+    }
+
+    /** Print a horizontal break with a label */
+    private static void printhr(String label) {
+        if (window != null) window.printhr(label);
+        else out.println("---- " + label);
+    }
+
+    /**
+     * Report training progress.
+     * 
+     * @param c The number of examples trained on so far
+     * @param start The value of {@link System#nanoTime()} when training
+     *            started
+     */
+    private static void progress(int c, long start) {
+        out.format("Training image %8d ...\n", c);
+        if (log != null) {
+            double secs = (System.nanoTime() - start) / 1e9;
+            log.event("progress", "examples", c, "examples_per_sec", c / secs);
+        }
+    }
+
+    /** Return the MNIST training data, loading it on first use. */
+    public static DataSet trainingData() throws IOException {
+        return DataSet.load(dataFile("data/train-images-idx3-ubyte"),
+                dataFile("data/train-labels-idx1-ubyte"));
+    }
+
+    /** Return the MNIST testing data, loading it on first use. */
+    public static DataSet testingData() throws IOException {
+        return DataSet.load(dataFile("data/t10k-images-idx3-ubyte"),
+                dataFile("data/t10k-labels-idx1-ubyte"));
+    }
+
+    /**
+     * Return the name of an uncompressed data file if it exists (see
+     * {@link IdxUnpack}), or else the name of the gz-compressed file.
+     */
+    private static String dataFile(String name) {
+        if (new File(name).isFile()) return name;
+        else return name + ".gz";
     }
 
     private static String layerName(SimpleNN nn, int lidx) {
@@ -127,35 +501,192 @@ public class Main {
             cmp.add(" "); // spacer
         }
         cmp.add(vgrpC("Loss Function: ", nn.loss.toString()));
-        out.println(hgrpC(cmp.toArray()));
+        window.println(hgrpC(cmp.toArray()));
     }
 
     /**
      * Train a neural network using examples from the MNIST training data.
      * 
      * @param nn The network to train
+     * @param order The order to train on examples in
      * @param count The number of examples to train on
-     * @param rate The learning rate
-     * @throws IOException if the data files are missing or unreadable
+     * @param rate The learning rate schedule
+     * @param ckpt Checkpoints the training run, or null
+     * @param stop Stops training early, or null
+     * @return The number of examples trained on
+     * @throws IOException if the data files are missing or unreadable, or a
+     *             checkpoint cannot be written
      */
-    public static void train(SimpleNN nn, int count, float rate)
+    public static int train(SimpleNN nn, Sampler order, int count,
+            Schedule rate, Checkpointer ckpt, EarlyStopping stop)
             throws IOException {
         float[][] act = nn.valueArray();
         float[][] err = nn.valueArray();
-        float[] exp = new float[10];
+        Prefetcher input = new Prefetcher(nn, trainingData(), order, 1, count,
+                64);
+
+        final long start = System.nanoTime();
+        int c = 0;
+        for (MiniBatch ex; (ex = input.take()) != null;) {
+            if (c % 5000 == 0) progress(c, start);
+            act[0] = ex.act[0];
+            nn.train(act, err, ex.expected, rate.rate(c));
+            input.release(ex);
+            c++;
+            if (ckpt != null) ckpt.update(c);
+            if (stop != null && stop.due(c) && validate(stop, c)) break;
+        }
+        input.close();
+        return c;
+    }
+
+    /**
+     * Train a neural network using mini-batches of examples from the MNIST
+     * training data.
+     * 
+     * @param nn The network to train
+     * @param order The order to train on examples in
+     * @param count The number of examples to train on
+     * @param batchsize The number of examples in each mini-batch
+     * @param threads The number of threads to split each mini-batch across
+     * @param rate The learning rate schedule
+     * @param opt The optimizer that updates the network
+     * @param ckpt Checkpoints the training run, or null
+     * @param stop Stops training early, or null
+     * @return The number of examples trained on
+     * @throws IOException if the data files are missing or unreadable, or a
+     *             checkpoint cannot be written
+     */
+    public static int trainBatch(SimpleNN nn, Sampler order, int count,
+            int batchsize, int threads, Schedule rate, Optimizer opt,
+            Checkpointer ckpt, EarlyStopping stop) throws IOException {
+        // the prefetched batches only hold examples, which are copied into
+        // the trainer's (or work's) value storage
+        ParallelTrainer trainer = null;
+        MiniBatch work = null;
+        if (threads > 1) trainer = new ParallelTrainer(nn, threads, batchsize);
+        else work = nn.batchValues(batchsize);
+
+        Prefetcher input = new Prefetcher(nn, trainingData(), order, batchsize,
+                count, 4);
+
+        final long start = System.nanoTime();
+        int c = 0;
+        for (MiniBatch batch; (batch = input.take()) != null;) {
+            int next = (c + 4999) / 5000 * 5000;
+            if (next < c + batch.size) progress(next, start);
+            final float r = rate.rate(c);
+            if (trainer != null) {
+                trainer.trainBatch(batch, r, opt);
+            } else {
+                work.copyExamples(batch);
+                nn.trainBatch(work, r, opt);
+            }
+            c += batch.size;
+            input.release(batch);
+            if (ckpt != null) ckpt.update(c);
+            if (stop != null && stop.due(c) && validate(stop, c)) break;
+        }
+        input.close();
+        if (trainer != null) trainer.shutdown();
+        return c;
+    }
 
+    /**
+     * Train a convolutional network using examples from the MNIST training
+     * data.
+     * 
+     * @param cnn The network to train
+     * @param order The order to train on examples in
+     * @param count The number of examples to train on
+     * @param rate The learning rate schedule
+     * @return The number of examples trained on
+     * @throws IOException if the data files are missing or unreadable
+     */
+    public static int trainConv(ConvNN cnn, Sampler order, int count,
+            Schedule rate) throws IOException {
+        final DataSet data = trainingData();
+        final ConvNN.Values vals = cnn.valueArray();
+        final float[] exp = new float[vals.out.length];
+        final long start = System.nanoTime();
         for (int c = 0; c < count; c++) {
-            ImageSet img = new ImageSet("data/train-images-idx3-ubyte.gz");
-            LabelSet lbl = new LabelSet("data/train-labels-idx1-ubyte.gz");
-            for (; img.hasNextImage() && lbl.hasNextLabel() && c < count; c++) {
-                if (c % 5000 == 0) out.format("Training image %8d ...\n", c);
-                byte label = lbl.nextLabel();
-                img.nextImage(act[0]);
-                //
-                exp[label] = 1;
-                nn.train(act, err, exp, rate);
-                exp[label] = 0;
+            if (c % 5000 == 0) progress(c, start);
+            final int idx = order.next(), label = data.label(idx);
+            data.image(idx, vals.in, 0);
+            exp[label] = 1;
+            cnn.train(vals, exp, rate.rate(c));
+            exp[label] = 0;
+        }
+        return count;
+    }
+
+    /**
+     * Build a convolutional front end from a comma-separated list of layers:
+     * {@code NcK} for a layer of {@code N} {@code KxK} kernels with ReLU
+     * activation, and {@code pS} for {@code SxS} max-pooling.
+     * 
+     * @param spec The layer list
+     * @param channels The number of channels of the input image
+     * @param rows The number of rows of the input image
+     * @param cols The number of columns of the input image
+     * @param rand The source of the initial weights
+     * @return The layers
+     * @throws IllegalArgumentException if the list is invalid, or the image
+     *             becomes too small for a layer
+     */
+    public static ImageLayer[] convLayers(String spec, int channels, int rows,
+            int cols, Random rand) {
+        String[] items = spec.split(",");
+        ImageLayer[] layers = new ImageLayer[items.length];
+        for (int l = 0; l < items.length; l++) {
+            String item = items[l];
+            int size = -1;
+            if (item.matches("p\\d+")) {
+                size = Integer.parseInt(item.substring(1));
+                if (size > 0 && size <= rows && size <= cols) {
+                    layers[l] = new PoolLayer(channels, rows, cols, size);
+                }
+            } else if (item.matches("\\d+c\\d+")) {
+                String[] nk = item.split("c");
+                int filters = Integer.parseInt(nk[0]);
+                size = Integer.parseInt(nk[1]);
+                if (filters > 0 && size > 0 && size <= rows && size <= cols) {
+                    layers[l] = new ConvLayer(channels, rows, cols, filters,
+                            size, RELU, rand);
+                }
             }
+            if (layers[l] == null) {
+                throw new IllegalArgumentException("Bad layer: " + item);
+            }
+            channels = layers[l].outChannels();
+            rows = layers[l].outRows();
+            cols = layers[l].outCols();
+        }
+        return layers;
+    }
+
+    /**
+     * Validate the network being trained, and report the result.
+     * 
+     * @param stop The early stopping monitor
+     * @param c The number of examples trained on so far
+     * @return True if training should stop
+     */
+    private static boolean validate(EarlyStopping stop, long c) {
+        final boolean halt = stop.validate(c);
+        validated(stop, c);
+        return halt;
+    }
+
+    /** Report the latest validation of an early stopping monitor */
+    private static void validated(EarlyStopping stop, long c) {
+        out.format("Validation error after %8d: %6.2f%% (best %6.2f%%)\n", c,
+                stop.last.errorRate() * 100, stop.bestError * 100);
+        if (log != null) {
+            log.event("validate", "examples", c, "error_rate", stop.last
+                    .errorRate(), "mean_loss", stop.last.meanLoss(),
+                    "best_error_rate", stop.bestError, "best_examples",
+                    stop.bestExamples);
         }
     }
 
@@ -180,37 +711,50 @@ public class Main {
             }
             int rem = nn.shape[lidx + 1] - limit;
             if (rem > 0) cmp.add(rem + " more ...");
-            out.println(hgrpC(cmp.toArray()));
+            window.println(hgrpC(cmp.toArray()));
         }
     }
 
     /**
-     * Test a neural network using examples from the MNIST testing data.
+     * Test a neural network using examples from the MNIST testing data, on
+     * every available core.
      * 
      * @param nn The network to test
      * @param count The number of examples to test
-     * @return The error rate (fraction of incorrectly classified examples)
+     * @return The metrics of the tested examples
      * @throws IOException if the data files are missing or unreadable
      */
-    public static float test(SimpleNN nn, int count) throws IOException {
-        float[][] act = nn.valueArray();
-        int errcnt = 0;
+    public static Metrics test(SimpleNN nn, int count) throws IOException {
+        DataSet data = testingData();
+        Evaluator eval = new Evaluator(nn, Runtime.getRuntime()
+                .availableProcessors());
+        try {
+            return eval.evaluate(data, count);
+        } finally {
+            eval.shutdown();
+        }
+    }
 
-        for (int c = 0; c < count; c++) {
-            ImageSet img = new ImageSet("data/t10k-images-idx3-ubyte.gz");
-            LabelSet lbl = new LabelSet("data/t10k-labels-idx1-ubyte.gz");
-            for (; img.hasNextImage() && lbl.hasNextLabel() && c < count; c++) {
-                if (c % 5000 == 0) out.format("Testing image %8d ...\n", c);
-                byte label = lbl.nextLabel();
-                img.nextImage(act[0]);
-                //
-                nn.apply(act);
-                int answer = maxidx(act[act.length - 1]);
-                if (answer != label) errcnt++;
+    /**
+     * Print the confusion matrix and the precision and recall of each class.
+     * 
+     * @param m The metrics to print
+     */
+    public static void printMetrics(Metrics m) {
+        StringBuilder sb = new StringBuilder("label\\answer");
+        for (int j = 0; j < m.classes; j++) {
+            sb.append(String.format(" %6d", j));
+        }
+        sb.append("  precision recall\n");
+        for (int k = 0; k < m.classes; k++) {
+            sb.append(String.format("%12d", k));
+            for (int j = 0; j < m.classes; j++) {
+                sb.append(String.format(" %6d", m.confusion[k][j]));
             }
+            sb.append(String.format("  %8.2f%% %5.2f%%\n", m.precision(k)
+                    * 100, m.recall(k) * 100));
         }
-
-        return errcnt / (float) count;
+        out.print(sb);
     }
 
     /**
@@ -226,47 +770,33 @@ public class Main {
             throws IOException {
         float[][] act = nn.valueArray();
         float[] exp = new float[10];
+        DataSet data = testingData();
 
         for (int c = 0; c < count; c++) {
-            ImageSet img = new ImageSet("data/t10k-images-idx3-ubyte.gz");
-            LabelSet lbl = new LabelSet("data/t10k-labels-idx1-ubyte.gz");
-            for (; img.hasNextImage() && lbl.hasNextLabel() && c < count; c++) {
-                byte label = lbl.nextLabel();
-                img.nextImage(act[0]);
-                //
-                exp[label] = 1;
-                float loss = nn.test(act, exp);
-                exp[label] = 0;
-                int answer = maxidx(act[act.length - 1]);
-                //
-                List<Object> cmp = new ArrayList<>();
-                for (int i = 0; i < act.length; i++) {
-                    int w = widths[i], h = act[i].length / w;
-                    DispImage im = new DispImage(DispImage.floatPix(act[i]), h,
-                            w);
-                    cmp.add(vgrpC(layerName(nn, i), im.scaled(4)));
-                    cmp.add(" "); // spacer
-                }
-                Object clbl = "Classifier result: " + answer;
-                if (answer != label) {
-                    clbl = vgrpC(clbl, txtC("EXPECTED " + label, 0xE00000));
-                }
-                cmp.add(vgrpC(clbl, "Loss: " + loss));
-                out.println(hgrpC(cmp.toArray()));
+            int idx = c % data.imageCnt;
+            byte label = data.label(idx);
+            data.image(idx, act[0], 0);
+            //
+            exp[label] = 1;
+            float loss = nn.test(act, exp);
+            exp[label] = 0;
+            float[] res = act[act.length - 1];
+            int answer = Metrics.answer(res, 0, res.length);
+            //
+            List<Object> cmp = new ArrayList<>();
+            for (int i = 0; i < act.length; i++) {
+                int w = widths[i], h = act[i].length / w;
+                DispImage im = new DispImage(DispImage.floatPix(act[i]), h, w);
+                cmp.add(vgrpC(layerName(nn, i), im.scaled(4)));
+                cmp.add(" "); // spacer
+            }
+            Object clbl = "Classifier result: " + answer;
+            if (answer != label) {
+                clbl = vgrpC(clbl, txtC("EXPECTED " + label, 0xE00000));
             }
+            cmp.add(vgrpC(clbl, "Loss: " + loss));
+            window.println(hgrpC(cmp.toArray()));
         }
     }
 
-    /**
-     * Return the index of the (last) maximum value, or -1 if any values are NaN
-     */
-    private static int maxidx(float[] vals) {
-        int idx = -1;
-        float max = Float.NEGATIVE_INFINITY;
-        for (int i = 0; i < vals.length; i++) {
-            if (Float.isNaN(vals[i])) return -1;
-            else if (vals[i] >= max) max = vals[idx = i];
-        }
-        return idx;
-    }
 }
@@ -0,0 +1,115 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Classification metrics accumulated over a set of examples: a confusion
+ * matrix, and the total loss.
+ * <p>
+ * A metrics object is not thread-safe. Parallel evaluation gives each worker
+ * its own, and {@link #merge(Metrics)}s them once all workers are done.
+ */
+public class Metrics {
+
+    /** The number of classes */
+    public final int classes;
+
+    /**
+     * The number of examples of each class ({@code [label]}) that were
+     * classified as each class ({@code [label][answer]}). Examples that could
+     * not be classified (NaN outputs) are only counted in {@link #count}.
+     */
+    public final long[][] confusion;
+
+    /** The number of examples */
+    public long count;
+
+    /** The sum of the loss of every example */
+    public double lossSum;
+
+    public Metrics(int classes) {
+        this.classes = classes;
+        this.confusion = new long[classes][classes];
+    }
+
+    /**
+     * Return the class that a row of network outputs classifies an example
+     * as: the index (relative to {@code off}) of the (last) maximum value in
+     * {@code out[off, off+len)}, or -1 if any values are NaN.
+     */
+    public static int answer(float[] out, int off, int len) {
+        int idx = -1;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < len; i++) {
+            if (Float.isNaN(out[off + i])) return -1;
+            else if (out[off + i] >= max) max = out[off + (idx = i)];
+        }
+        return idx;
+    }
+
+    /**
+     * Add an example.
+     *
+     * @param label The expected class
+     * @param answer The class it was classified as, or -1 if none
+     * @param loss The loss of the example
+     */
+    public void add(int label, int answer, float loss) {
+        if (answer >= 0) confusion[label][answer]++;
+        count++;
+        lossSum += loss;
+    }
+
+    /** Add all examples counted by another metrics object. */
+    public void merge(Metrics other) {
+        assert (other.classes == classes);
+        for (int k = 0; k < classes; k++) {
+            for (int j = 0; j < classes; j++) {
+                confusion[k][j] += other.confusion[k][j];
+            }
+        }
+        count += other.count;
+        lossSum += other.lossSum;
+    }
+
+    /** Return the number of examples that were classified incorrectly */
+    public long errors() {
+        long correct = 0;
+        for (int k = 0; k < classes; k++) {
+            correct += confusion[k][k];
+        }
+        return count - correct;
+    }
+
+    /** Return the fraction of examples that were classified incorrectly */
+    public float errorRate() {
+        return errors() / (float) count;
+    }
+
+    /** Return the mean loss per example */
+    public double meanLoss() {
+        return lossSum / count;
+    }
+
+    /**
+     * Return the fraction of examples classified as class {@code k} that
+     * really are class {@code k}, or NaN if none were classified as it.
+     */
+    public double precision(int k) {
+        long answered = 0;
+        for (int label = 0; label < classes; label++) {
+            answered += confusion[label][k];
+        }
+        return confusion[k][k] / (double) answered;
+    }
+
+    /**
+     * Return the fraction of examples of class {@code k} that were classified
+     * as class {@code k}, or NaN if there were none.
+     */
+    public double recall(int k) {
+        long labeled = 0;
+        for (int answer = 0; answer < classes; answer++) {
+            labeled += confusion[k][answer];
+        }
+        return confusion[k][k] / (double) labeled;
+    }
+}
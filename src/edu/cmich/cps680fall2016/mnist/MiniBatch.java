@@ -0,0 +1,127 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Value storage for training or applying a {@link SimpleNN} to a batch of
+ * examples at once.
+ * <p>
+ * The values for each layer are stored in a single array, one example per
+ * row. Row {@code b} of layer {@code l} occupies elements
+ * {@code [b * shape[l], (b + 1) * shape[l])} of {@code act[l]}, so that a
+ * forward or backward pass over the whole batch is a matrix-matrix product.
+ */
+public class MiniBatch {
+
+    /** The maximum number of examples in the batch */
+    public final int capacity;
+
+    /** The number of examples currently stored in the batch */
+    public int size;
+
+    /**
+     * Activations of each layer, where {@code act[0]} holds the input rows and
+     * {@code act[act.length - 1]} holds the output rows. Only {@code act[0]}
+     * is allocated for batches that only hold examples.
+     */
+    public final float[][] act;
+
+    /**
+     * Same structure as {@code act}, but stores the error at each layer. Null
+     * for batches that are only used to apply the NN or hold examples.
+     */
+    public final float[][] err;
+
+    /** The <b>expected</b> output rows of the last layer. */
+    public final float[] expected;
+
+    /**
+     * Accumulated gradient of the loss with respect to each weight, with the
+     * same structure as {@link SimpleNN#weights}. Null for batches that are
+     * only used to apply the NN or hold examples.
+     */
+    public final float[][] grad;
+
+    /** Scratch rows for the (single-example) activation and loss functions */
+    final float[][] rowA, rowB;
+
+    /**
+     * The indices of the nonzero inputs of each example (at the same offsets
+     * as {@code act[0]}), their count, and a cursor into them, for
+     * {@link SimpleNN#sparseInput}. Allocated on first use.
+     */
+    int[] nzIdx, nzCnt, nzPos;
+
+    /**
+     * Allocate storage for a batch of examples.
+     *
+     * @param shape The number of inputs/neurons in each layer
+     * @param capacity The maximum number of examples in the batch
+     * @param training True to allocate storage for errors and gradients
+     */
+    MiniBatch(int[] shape, int capacity, boolean training) {
+        this(shape, capacity, true, training);
+    }
+
+    /**
+     * Allocate storage for a batch of examples.
+     *
+     * @param shape The number of inputs/neurons in each layer
+     * @param capacity The maximum number of examples in the batch
+     * @param layers False to allocate only the input and expected output rows
+     * @param training True to allocate storage for errors and gradients
+     */
+    MiniBatch(int[] shape, int capacity, boolean layers, boolean training) {
+        assert (capacity > 0 && (layers || !training));
+        this.capacity = capacity;
+        this.act = new float[shape.length][];
+        this.err = training ? new float[shape.length][] : null;
+        this.rowA = new float[shape.length][];
+        this.rowB = new float[shape.length][];
+        this.grad = training ? new float[shape.length - 1][] : null;
+        for (int layeridx = 0; layeridx < shape.length; layeridx++) {
+            if (layers || layeridx == 0)
+                act[layeridx] = new float[capacity * shape[layeridx]];
+            rowA[layeridx] = new float[shape[layeridx]];
+            rowB[layeridx] = new float[shape[layeridx]];
+            if (!training) continue;
+            err[layeridx] = new float[capacity * shape[layeridx]];
+        }
+        if (training) {
+            for (int layeridx = 0; layeridx < shape.length - 1; layeridx++) {
+                int wcnt = (shape[layeridx] + 1) * shape[layeridx + 1];
+                grad[layeridx] = new float[wcnt];
+            }
+        }
+        this.expected = new float[capacity * shape[shape.length - 1]];
+    }
+
+    /**
+     * Copy the examples (input and expected output rows) of another batch
+     * for the same network into this one.
+     */
+    public void copyExamples(MiniBatch src) {
+        assert (src.size <= capacity);
+        final int incnt = rowA[0].length, outcnt = expected.length / capacity;
+        System.arraycopy(src.act[0], 0, act[0], 0, src.size * incnt);
+        System.arraycopy(src.expected, 0, expected, 0, src.size * outcnt);
+        size = src.size;
+    }
+
+    /** Return the array offset of the first input value of example {@code b} */
+    public int inputOffset(int b) {
+        assert (b >= 0 && b < capacity);
+        return b * rowA[0].length;
+    }
+
+    /**
+     * Set the expected output of example {@code b} to the one-hot vector for
+     * class {@code label}.
+     */
+    public void setLabel(int b, int label) {
+        assert (b >= 0 && b < capacity);
+        final int outcnt = rowA[rowA.length - 1].length;
+        for (int j = 0; j < outcnt; j++) {
+            expected[b * outcnt + j] = 0;
+        }
+        expected[b * outcnt + label] = 1;
+    }
+}
@@ -0,0 +1,307 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import static edu.cmich.cps680fall2016.mnist.Activation.*;
+import static edu.cmich.cps680fall2016.mnist.Loss.*;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Binary file format for a trained {@link SimpleNN}.
+ * <p>
+ * All values are little-endian. A file consists of:
+ * <ul>
+ * <li>a header: the magic number {@code "SMNN"}, the format version, the
+ * number of layers {@code L}, the offset of the weights, {@code L} layer
+ * sizes, {@code L-1} activation function names and the loss function name.
+ * Names are {@code toString()} values, each stored as a 16-bit byte count
+ * followed by UTF-8 bytes.</li>
+ * <li>zero padding up to the next multiple of {@link #ALIGN} bytes.</li>
+ * <li>the weights of each layer, laid out as in {@link SimpleNN#weights},
+ * each followed by zero padding up to the next multiple of {@link #ALIGN}
+ * bytes.</li>
+ * <li>optionally, for checkpoints, the {@link TrainingState}: the magic
+ * number {@code "STAT"}, the number of examples trained on, the sampler seed,
+ * and the sampler epoch and position.</li>
+ * </ul>
+ * Since the weights are stored exactly as they are held in memory, loading a
+ * model maps the file and copies each layer in bulk, with no per-value
+ * decoding. The network computes on heap arrays, so loading still reads every
+ * weight once; it is not zero-copy. Offsets are 64-bit and the weights are
+ * mapped and written a chunk at a time, so a file may be larger than 2 GB.
+ */
+public class ModelFile {
+
+    private static final int MAGIC = 0x4E4E4D53; // "SMNN" little-endian
+
+    private static final int VERSION = 1;
+
+    private static final int STATE_MAGIC = 0x54415453; // "STAT" little-endian
+
+    /** The alignment of the weights of each layer in bytes, i.e. one cache line */
+    public static final int ALIGN = 64;
+
+    /** The largest number of weight bytes mapped or written at once */
+    private static final int CHUNK = 1 << 24;
+
+    /** Progress of a training run, stored with a checkpoint. */
+    public static class TrainingState {
+
+        /** The number of examples trained on so far */
+        public final long examples;
+
+        /** The seed of the {@link Sampler} that orders the examples */
+        public final long seed;
+
+        /** The position of the next example, see {@link Sampler#seek} */
+        public final int epoch, position;
+
+        public TrainingState(long examples, long seed, int epoch, int position) {
+            this.examples = examples;
+            this.seed = seed;
+            this.epoch = epoch;
+            this.position = position;
+        }
+    }
+
+    /** Every activation function that can be stored in a model file */
+    private static final Activation[] ACTIVATIONS = { PASSTHROUGH, LOGISTIC,
+            SOFTMAX, FAST_LOGISTIC, FAST_SOFTMAX, RELU };
+
+    /** Every loss function that can be stored in a model file */
+    private static final Loss[] LOSSES = { MEAN_SQUARED_ERR, CROSS_ENTROPY,
+            SOFTMAX_CROSS_ENTROPY, FAST_CROSS_ENTROPY,
+            FAST_SOFTMAX_CROSS_ENTROPY };
+
+    private ModelFile() {}
+
+    /**
+     * Write a network to a file. The file is written under a temporary name
+     * and then renamed, so an existing file is replaced only once the new one
+     * is complete.
+     *
+     * @param nn The network to save
+     * @param file The name of the file to write
+     * @throws IOException
+     */
+    public static void save(SimpleNN nn, String file) throws IOException {
+        save(nn, nn.weights, null, file);
+    }
+
+    /**
+     * Write a network to a file, taking its weights from {@code weights}
+     * (with the same structure as {@link SimpleNN#weights}) rather than from
+     * the network itself, followed by the state of a training run if
+     * {@code state} is non-null.
+     *
+     * @see #save(SimpleNN, String)
+     */
+    static void save(SimpleNN nn, float[][] weights, TrainingState state,
+            String file) throws IOException {
+        ByteBuffer header = header(nn);
+        ByteBuffer trailer = ByteBuffer.allocate(state != null ? 28 : 0)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        if (state != null) {
+            trailer.putInt(STATE_MAGIC).putLong(state.examples);
+            trailer.putLong(state.seed).putInt(state.epoch);
+            trailer.putInt(state.position).flip();
+        }
+        Path path = Paths.get(file);
+        Path tmp = Paths.get(file + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min(CHUNK,
+                    weightBytes(nn.shape))).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                ch.write(header);
+            }
+            for (float[] w : weights) {
+                for (int k = 0; k < w.length;) {
+                    final int n = Math.min(w.length - k, data.capacity() / 4);
+                    data.clear();
+                    data.asFloatBuffer().put(w, k, n);
+                    data.limit(4 * n);
+                    while (data.hasRemaining()) {
+                        ch.write(data);
+                    }
+                    k += n;
+                }
+                // zero padding up to the next layer
+                ByteBuffer pad = ByteBuffer.allocate((int) (align(4L
+                        * w.length) - 4L * w.length));
+                while (pad.hasRemaining()) {
+                    ch.write(pad);
+                }
+            }
+            while (trailer.hasRemaining()) {
+                ch.write(trailer);
+            }
+            ch.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a network from a file.
+     *
+     * @param file The name of the file to read
+     * @return A new network with the shape, functions and weights stored in
+     *         the file
+     * @throws IOException if the file is unreadable or not a model file
+     */
+    public static SimpleNN load(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(file),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer map = header(ch);
+            if (map.getInt() != MAGIC)
+                throw new IOException("Not a model file: " + file);
+            int version = map.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported model file version "
+                        + version + ": " + file);
+            int layers = map.getInt();
+            int dataoff = map.getInt();
+            // the layer sizes must fit in the file before they are allocated
+            if (layers < 2 || layers > map.remaining() / 4)
+                throw new IOException("Corrupt model file: " + file);
+            int[] shape = new int[layers];
+            for (int l = 0; l < layers; l++) {
+                shape[l] = map.getInt();
+                if (shape[l] < 1)
+                    throw new IOException("Corrupt model file: " + file);
+            }
+            Activation[] actv = new Activation[layers - 1];
+            for (int l = 0; l < layers - 1; l++) {
+                actv[l] = lookup(ACTIVATIONS, name(map), file);
+            }
+            Loss loss = lookup(LOSSES, name(map), file);
+
+            if (dataoff < map.position()
+                    || ch.size() - dataoff < weightBytes(shape))
+                throw new IOException("Truncated model file: " + file);
+            SimpleNN nn = new SimpleNN(shape, actv, loss);
+            long pos = dataoff;
+            for (float[] w : nn.weights) {
+                for (int k = 0; k < w.length;) {
+                    final int n = Math.min(w.length - k, CHUNK / 4);
+                    MappedByteBuffer data = ch.map(
+                            FileChannel.MapMode.READ_ONLY, pos, 4L * n);
+                    data.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(w,
+                            k, n);
+                    pos += 4L * n;
+                    k += n;
+                }
+                pos = align(pos);
+            }
+            return nn;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt model file: " + file, e);
+        }
+    }
+
+    /**
+     * Read the state of the training run stored with a checkpoint.
+     *
+     * @param file The name of the file to read
+     * @return The training state, or null if the file has none
+     * @throws IOException if the file is unreadable or not a model file
+     */
+    public static TrainingState loadState(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(file),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer map = header(ch);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                throw new IOException("Not a model file: " + file);
+            int layers = map.getInt(8);
+            // the layer sizes must fit in the file before they are allocated
+            if (layers < 2 || layers > (map.limit() - 16) / 4)
+                throw new IOException("Corrupt model file: " + file);
+            int[] shape = new int[layers];
+            for (int l = 0; l < shape.length; l++) {
+                shape[l] = map.getInt(16 + 4 * l);
+            }
+            long pos = map.getInt(12) + weightBytes(shape);
+            if (ch.size() - pos < 28) return null;
+            MappedByteBuffer trailer = ch.map(FileChannel.MapMode.READ_ONLY,
+                    pos, 28);
+            trailer.order(ByteOrder.LITTLE_ENDIAN);
+            if (trailer.getInt() != STATE_MAGIC) return null;
+            return new TrainingState(trailer.getLong(), trailer.getLong(),
+                    trailer.getInt(), trailer.getInt());
+        } catch (IndexOutOfBoundsException | IllegalArgumentException
+                | NegativeArraySizeException e) {
+            throw new IOException("Corrupt model file: " + file, e);
+        }
+    }
+
+    /**
+     * Map the start of a file, which holds the header, as a little-endian
+     * buffer. At most 2 GB are mapped, so the weights of a large file may
+     * extend past its end.
+     */
+    private static MappedByteBuffer header(FileChannel ch) throws IOException {
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math
+                .min(ch.size(), Integer.MAX_VALUE));
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return map;
+    }
+
+    /** Return the number of bytes of the weights of a shape, with padding */
+    static long weightBytes(int[] shape) {
+        long off = 0;
+        for (int layeridx = 0; layeridx < shape.length - 1; layeridx++) {
+            off = align(off + 4 * ((shape[layeridx] + 1L) * shape[layeridx
+                    + 1]));
+        }
+        return off;
+    }
+
+    private static long align(long off) {
+        return (off + ALIGN - 1) / ALIGN * ALIGN;
+    }
+
+    /** Return the header of a file for a network, ready to be written */
+    private static ByteBuffer header(SimpleNN nn) {
+        byte[][] names = new byte[nn.actv.length + 1][];
+        int size = 16 + 4 * nn.shape.length;
+        for (int l = 0; l < names.length; l++) {
+            Object f = l < nn.actv.length ? nn.actv[l] : nn.loss;
+            names[l] = f.toString().getBytes(StandardCharsets.UTF_8);
+            size += 2 + names[l].length;
+        }
+        final int dataoff = (int) align(size);
+        ByteBuffer header = ByteBuffer.allocate(dataoff).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION);
+        header.putInt(nn.shape.length).putInt(dataoff);
+        for (int s : nn.shape) {
+            header.putInt(s);
+        }
+        for (byte[] name : names) {
+            header.putShort((short) name.length).put(name);
+        }
+        header.clear(); // the rest is zero padding
+        return header;
+    }
+
+    private static String name(ByteBuffer buf) {
+        byte[] name = new byte[buf.getShort() & 0xFFFF];
+        buf.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static <T> T lookup(T[] known, String name, String file)
+            throws IOException {
+        for (T f : known) {
+            if (f.toString().equals(name)) return f;
+        }
+        throw new IOException("Unknown function '" + name + "' in " + file);
+    }
+}
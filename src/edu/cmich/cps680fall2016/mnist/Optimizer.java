@@ -0,0 +1,171 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Strategy for updating the weights of a network along a gradient.
+ * <p>
+ * An optimizer belongs to one network, and keeps any per-weight state it
+ * needs (velocities, moment estimates) in arrays with the same structure as
+ * {@link SimpleNN#weights}, allocated once when it is created. Updates do not
+ * allocate.
+ */
+public interface Optimizer {
+
+    /**
+     * Update the weights of the network along a gradient.
+     *
+     * @param grad The gradient of the loss summed over a batch of examples,
+     *            with the same structure as {@link SimpleNN#weights}. It is
+     *            not modified.
+     * @param rows The number of examples in the batch
+     * @param rate The learning rate
+     */
+    public void update(float[][] grad, int rows, float rate);
+
+    /** Plain gradient descent: {@code w -= rate * g} */
+    public static Optimizer sgd(final SimpleNN nn) {
+        return new Optimizer() {
+
+            @Override public void update(float[][] grad, int rows, float rate) {
+                nn.update(grad, rate / rows);
+            }
+
+            @Override public String toString() {
+                return "sgd";
+            }
+        };
+    }
+
+    /**
+     * Gradient descent with (heavy ball) momentum, which keeps a velocity for
+     * each weight so that steps in a consistent direction build up speed:
+     *
+     * <pre>
+     *  v = mu * v + rate * g
+     *  w -= v
+     * </pre>
+     *
+     * @param nn The network to update
+     * @param mu The momentum, in [0, 1)
+     */
+    public static Optimizer momentum(final SimpleNN nn, final float mu) {
+        final float[][] vel = zeros(nn);
+        return new Optimizer() {
+
+            @Override public void update(float[][] grad, int rows, float rate) {
+                final float scale = rate / rows;
+                for (int l = 0; l < vel.length; l++) {
+                    final float[] w = nn.weights[l], g = grad[l], v = vel[l];
+                    for (int k = 0; k < w.length; k++) {
+                        v[k] = mu * v[k] + scale * g[k];
+                        w[k] -= v[k];
+                    }
+                }
+            }
+
+            @Override public String toString() {
+                return "momentum";
+            }
+        };
+    }
+
+    /**
+     * Gradient descent with Nesterov momentum, which is like
+     * {@link #momentum(SimpleNN, float)} but takes the gradient at the point
+     * the velocity is about to carry the weights to. Keeping the weights at
+     * that look-ahead point, this is:
+     *
+     * <pre>
+     *  v = mu * v + rate * g
+     *  w -= mu * v + rate * g
+     * </pre>
+     *
+     * @param nn The network to update
+     * @param mu The momentum, in [0, 1)
+     */
+    public static Optimizer nesterov(final SimpleNN nn, final float mu) {
+        final float[][] vel = zeros(nn);
+        return new Optimizer() {
+
+            @Override public void update(float[][] grad, int rows, float rate) {
+                final float scale = rate / rows;
+                for (int l = 0; l < vel.length; l++) {
+                    final float[] w = nn.weights[l], g = grad[l], v = vel[l];
+                    for (int k = 0; k < w.length; k++) {
+                        final float step = scale * g[k];
+                        v[k] = mu * v[k] + step;
+                        w[k] -= mu * v[k] + step;
+                    }
+                }
+            }
+
+            @Override public String toString() {
+                return "nesterov";
+            }
+        };
+    }
+
+    /**
+     * Adam, which scales the step of each weight by running estimates of the
+     * mean ({@code m}) and uncentered variance ({@code v}) of its gradient,
+     * so every weight moves at a similar speed whatever the scale of its
+     * gradient:
+     *
+     * <pre>
+     *  m = beta1 * m + (1 - beta1) * g
+     *  v = beta2 * v + (1 - beta2) * g^2
+     *  w -= rate * m' / (sqrt(v') + eps)
+     * </pre>
+     *
+     * where {@code m'} and {@code v'} are corrected for the bias towards 0 of
+     * the first few steps, by dividing by {@code 1 - beta^t}. {@code g} is
+     * the mean gradient of the batch. Typical learning rates are around
+     * 0.001.
+     *
+     * @param nn The network to update
+     * @param beta1 The decay rate of the mean, e.g. 0.9
+     * @param beta2 The decay rate of the variance, e.g. 0.999
+     * @param eps Added to the standard deviation to avoid dividing by 0, e.g.
+     *            1e-8
+     */
+    public static Optimizer adam(final SimpleNN nn, final float beta1,
+            final float beta2, final float eps) {
+        final float[][] mean = zeros(nn), var = zeros(nn);
+        return new Optimizer() {
+
+            private int t;
+
+            @Override public void update(float[][] grad, int rows, float rate) {
+                t++;
+                // fold the bias corrections into the step size and epsilon
+                final double c1 = 1 - Math.pow(beta1, t);
+                final double c2 = Math.sqrt(1 - Math.pow(beta2, t));
+                final float step = (float) (rate * c2 / c1);
+                final float e = (float) (eps * c2);
+                final float scale = 1F / rows;
+                for (int l = 0; l < mean.length; l++) {
+                    final float[] w = nn.weights[l], g = grad[l];
+                    final float[] m = mean[l], v = var[l];
+                    for (int k = 0; k < w.length; k++) {
+                        final float g_k = scale * g[k];
+                        m[k] = beta1 * m[k] + (1 - beta1) * g_k;
+                        v[k] = beta2 * v[k] + (1 - beta2) * g_k * g_k;
+                        w[k] -= step * m[k] / ((float) Math.sqrt(v[k]) + e);
+                    }
+                }
+            }
+
+            @Override public String toString() {
+                return "adam";
+            }
+        };
+    }
+
+    /** Allocate zeroed state with the same structure as the weights */
+    static float[][] zeros(SimpleNN nn) {
+        final float[][] state = new float[nn.weights.length][];
+        for (int l = 0; l < state.length; l++) {
+            state[l] = new float[nn.weights[l].length];
+        }
+        return state;
+    }
+}
@@ -0,0 +1,160 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Data-parallel mini-batch trainer for a {@link SimpleNN}.
+ * <p>
+ * Each mini-batch is split into one contiguous shard per worker. Every worker
+ * computes the gradient of its shard into its own buffer, the buffers are
+ * summed, and the network is updated once with the mean gradient.
+ * <p>
+ * Shards are assigned by position in the batch and the buffers are always
+ * summed in worker order, so the result depends only on the training data
+ * and the number of workers - not on thread scheduling.
+ */
+public class ParallelTrainer {
+
+    /** The network being trained */
+    public final SimpleNN nn;
+
+    /** The number of worker threads */
+    public final int threads;
+
+    private final ForkJoinPool pool;
+
+    /** Per-worker value storage and gradient buffers */
+    private final MiniBatch[] shards;
+
+    /** The total gradient of a batch, with the same structure as weights */
+    private final float[][] grad;
+
+    /** The optimizer of {@link #trainBatch(MiniBatch, float)} */
+    private final Optimizer sgd;
+
+    /**
+     * Create a new trainer.
+     *
+     * @param nn The network to train
+     * @param threads The number of worker threads
+     * @param batchsize The maximum number of examples in a mini-batch
+     */
+    public ParallelTrainer(SimpleNN nn, int threads, int batchsize) {
+        assert (threads > 0 && batchsize > 0);
+        this.nn = nn;
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads);
+        this.shards = new MiniBatch[threads];
+        int shardcap = (batchsize + threads - 1) / threads;
+        for (int t = 0; t < threads; t++) {
+            shards[t] = nn.batchValues(shardcap);
+        }
+        this.grad = new float[nn.weights.length][];
+        for (int layeridx = 0; layeridx < nn.weights.length; layeridx++) {
+            grad[layeridx] = new float[nn.weights[layeridx].length];
+        }
+        this.sgd = Optimizer.sgd(nn);
+    }
+
+    /**
+     * Train the network with a batch of input, output pairs.
+     *
+     * @param batch A batch of input rows ({@code batch.act[0]}) and expected
+     *            output rows ({@code batch.expected}).
+     * @param rate The back-propagation rate.
+     * @see SimpleNN#trainBatch(MiniBatch, float)
+     */
+    public void trainBatch(MiniBatch batch, float rate) {
+        trainBatch(batch, rate, sgd);
+    }
+
+    /**
+     * Train the network with a batch of input, output pairs, updating the
+     * weights with an optimizer.
+     *
+     * @param batch A batch of input rows ({@code batch.act[0]}) and expected
+     *            output rows ({@code batch.expected}).
+     * @param rate The learning rate.
+     * @param opt The optimizer for the network.
+     * @see SimpleNN#trainBatch(MiniBatch, float, Optimizer)
+     */
+    public void trainBatch(final MiniBatch batch, float rate, Optimizer opt) {
+        assert (batch.size > 0 && batch.size <= shards[0].capacity * threads);
+
+        // compute gradient of each shard
+        final int incnt = nn.shape[0], outcnt = nn.shape[nn.shape.length - 1];
+        final int rows = batch.size;
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            final MiniBatch shard = shards[t];
+            final int r0 = rows * t / threads, r1 = rows * (t + 1) / threads;
+            shard.size = r1 - r0;
+            if (shard.size == 0) continue;
+            tasks.add(new RecursiveAction() {
+
+                @Override protected void compute() {
+                    System.arraycopy(batch.act[0], r0 * incnt, shard.act[0], 0,
+                            shard.size * incnt);
+                    System.arraycopy(batch.expected, r0 * outcnt,
+                            shard.expected, 0, shard.size * outcnt);
+                    nn.gradient(shard);
+                }
+            });
+        }
+        runAll(tasks);
+
+        // sum gradients of all shards, in worker order
+        tasks.clear();
+        for (int t = 0; t < threads; t++) {
+            final int part = t;
+            tasks.add(new RecursiveAction() {
+
+                @Override protected void compute() {
+                    reduce(part);
+                }
+            });
+        }
+        runAll(tasks);
+
+        opt.update(grad, rows, rate);
+    }
+
+    /**
+     * Sum the gradient buffers of all non-empty shards into {@code grad}, for
+     * the {@code part}'th slice of each layer.
+     */
+    private void reduce(int part) {
+        for (int layeridx = 0; layeridx < grad.length; layeridx++) {
+            final float[] sum = grad[layeridx];
+            final int k0 = (int) ((long) sum.length * part / threads);
+            final int k1 = (int) ((long) sum.length * (part + 1) / threads);
+            Arrays.fill(sum, k0, k1, 0);
+            for (int t = 0; t < threads; t++) {
+                if (shards[t].size == 0) continue;
+                final float[] g = shards[t].grad[layeridx];
+                for (int k = k0; k < k1; k++) {
+                    sum[k] += g[k];
+                }
+            }
+        }
+    }
+
+    private void runAll(final List<ForkJoinTask<?>> tasks) {
+        pool.invoke(new RecursiveAction() {
+
+            @Override protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /** Stop the worker threads. The trainer may not be used afterwards. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
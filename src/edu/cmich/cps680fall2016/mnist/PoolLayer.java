@@ -0,0 +1,114 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.Arrays;
+
+/**
+ * Max-pooling layer: each output value is the maximum of a
+ * {@code size * size} block of its input channel, and the blocks do not
+ * overlap. Rows and columns left over at the bottom and right edges are
+ * ignored.
+ */
+public class PoolLayer implements ImageLayer {
+
+    /** The number of channels, and the size of each input channel */
+    public final int channels, rows, cols;
+
+    /** The width and height of the pooled blocks */
+    public final int size;
+
+    /**
+     * Create a new max-pooling layer.
+     *
+     * @param channels The number of channels
+     * @param rows The number of rows of each input channel
+     * @param cols The number of columns of each input channel
+     * @param size The width and height of the pooled blocks
+     */
+    public PoolLayer(int channels, int rows, int cols, int size) {
+        assert (size > 0 && rows >= size && cols >= size);
+        this.channels = channels;
+        this.rows = rows;
+        this.cols = cols;
+        this.size = size;
+    }
+
+    @Override public int inChannels() {
+        return channels;
+    }
+
+    @Override public int inRows() {
+        return rows;
+    }
+
+    @Override public int inCols() {
+        return cols;
+    }
+
+    @Override public int outChannels() {
+        return channels;
+    }
+
+    @Override public int outRows() {
+        return rows / size;
+    }
+
+    @Override public int outCols() {
+        return cols / size;
+    }
+
+    @Override public int scratchSize() {
+        return 0;
+    }
+
+    @Override public void forward(float[] in, float[] out, float[] scratch) {
+        final int orows = outRows(), ocols = outCols();
+        for (int ch = 0, o = 0; ch < channels; ch++) {
+            for (int r = 0; r < orows; r++) {
+                for (int c = 0; c < ocols; c++, o++) {
+                    final int base = (ch * rows + r * size) * cols + c * size;
+                    float max = Float.NEGATIVE_INFINITY;
+                    for (int dr = 0; dr < size; dr++) {
+                        for (int dc = 0; dc < size; dc++) {
+                            max = Math.max(max, in[base + dr * cols + dc]);
+                        }
+                    }
+                    out[o] = max;
+                }
+            }
+        }
+    }
+
+    /**
+     * Back-propagate the error to the input. A pooling layer has no
+     * parameters, so this is the only thing it does, and {@code inErr} must
+     * not be null.
+     */
+    @Override public void backward(float[] in, float[] out, float[] err,
+            float[] inErr, float[] scratch, float rate) {
+        assert (inErr != null);
+        Arrays.fill(inErr, 0, channels * rows * cols, 0);
+        final int orows = outRows(), ocols = outCols();
+        for (int ch = 0, o = 0; ch < channels; ch++) {
+            for (int r = 0; r < orows; r++) {
+                for (int c = 0; c < ocols; c++, o++) {
+                    // the error goes to the (first) input that was the max,
+                    // found again rather than stored by forward
+                    final int base = (ch * rows + r * size) * cols + c * size;
+                    search: for (int dr = 0; dr < size; dr++) {
+                        for (int dc = 0; dc < size; dc++) {
+                            final int i = base + dr * cols + dc;
+                            if (in[i] == out[o]) {
+                                inErr[i] = err[o];
+                                break search;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override public String toString() {
+        return "pool " + size + "x" + size;
+    }
+}
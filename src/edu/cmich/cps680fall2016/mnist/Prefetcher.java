@@ -0,0 +1,144 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Background input pipeline for training a {@link SimpleNN}.
+ * <p>
+ * A producer thread copies and normalizes examples from a {@link DataSet},
+ * in the order given by a {@link Sampler}, into a fixed ring of reusable
+ * {@link MiniBatch} slots, while the training thread consumes them. The slots
+ * only hold examples (see {@link SimpleNN#exampleValues(int)}). The number of
+ * slots bounds how far the producer can run ahead, and no memory is allocated
+ * once the pipeline is running.
+ * <p>
+ * If the producer fails, the pipeline ends early and {@link #take()} throws
+ * the failure in the training thread.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * for (MiniBatch batch; (batch = input.take()) != null; input.release(batch)) {
+ *     trainer.trainBatch(batch, rate);
+ * }
+ * </pre>
+ */
+public class Prefetcher {
+
+    /** The number of examples in each (full) batch */
+    public final int batchsize;
+
+    /** The total number of examples to produce */
+    public final int count;
+
+    private final DataSet data;
+
+    private final Sampler order;
+
+    /** Slots that are free to be filled by the producer */
+    private final BlockingQueue<MiniBatch> free;
+
+    /** Slots that are filled and ready for the consumer */
+    private final BlockingQueue<MiniBatch> full;
+
+    private final Thread producer;
+
+    /** The exception that stopped the producer, or null */
+    private volatile Throwable failure;
+
+    /**
+     * Create and start a new pipeline.
+     *
+     * @param nn The network the batches are for
+     * @param data The examples to produce
+     * @param order The order to produce examples in. It is used by the
+     *            producer thread until the pipeline ends.
+     * @param batchsize The number of examples in each batch
+     * @param count The total number of examples to produce
+     * @param slots The number of batches that may be in flight at once
+     */
+    public Prefetcher(SimpleNN nn, DataSet data, Sampler order, int batchsize,
+            int count, int slots) {
+        assert (batchsize > 0 && slots > 0);
+        assert (order.size <= data.imageCnt);
+        this.data = data;
+        this.order = order;
+        this.batchsize = batchsize;
+        this.count = count;
+        this.free = new ArrayBlockingQueue<>(slots);
+        this.full = new ArrayBlockingQueue<>(slots);
+        for (int s = 0; s < slots; s++) {
+            free.add(nn.exampleValues(batchsize));
+        }
+        this.producer = new Thread(new Runnable() {
+
+            @Override public void run() {
+                try {
+                    produce();
+                } catch (InterruptedException e) {
+                    // closed early, just stop
+                }
+            }
+        }, "prefetcher");
+        this.producer.setDaemon(true);
+        this.producer.start();
+    }
+
+    private void produce() throws InterruptedException {
+        MiniBatch batch = null;
+        try {
+            for (int c = 0; c < count;) {
+                batch = free.take();
+                batch.size = 0;
+                for (; batch.size < batchsize && c < count; c++) {
+                    int idx = order.next();
+                    batch.setLabel(batch.size, data.label(idx));
+                    data.image(idx, batch.act[0], batch.inputOffset(
+                            batch.size));
+                    batch.size++;
+                }
+                full.put(batch);
+                batch = null;
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        // an empty batch marks the end (reusing the one being filled, if the
+        // producer failed, since it may have taken the last free slot)
+        MiniBatch end = batch != null ? batch : free.take();
+        end.size = 0;
+        full.put(end);
+    }
+
+    /**
+     * Return the next filled batch, waiting for it if necessary, or null if
+     * all examples have been produced. The batch must be handed back with
+     * {@link #release(MiniBatch)} once it is no longer needed.
+     *
+     * @throws RuntimeException if the producer failed, with the failure as
+     *             its cause
+     */
+    public MiniBatch take() {
+        try {
+            MiniBatch batch = full.take();
+            if (batch.size > 0) return batch;
+            full.put(batch); // leave the end marker for any later calls
+            if (failure != null)
+                throw new RuntimeException("Prefetcher failed", failure);
+            return null;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Return a batch to the pipeline to be refilled. */
+    public void release(MiniBatch batch) {
+        free.add(batch);
+    }
+
+    /** Stop the producer thread. The pipeline may not be used afterwards. */
+    public void close() {
+        producer.interrupt();
+    }
+}
@@ -0,0 +1,255 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An inference-only copy of a trained {@link SimpleNN}, with 8-bit integer
+ * weights and integer dot products.
+ * <p>
+ * The weights of each layer (except the bias, which stays a float) are
+ * quantized to signed bytes with a per-layer scale {@code s} and zero point
+ * {@code z}, so that {@code w ~= s * (q - z)}. Before each layer, the input
+ * values are quantized the same way to unsigned bytes, with a scale and zero
+ * point computed from the range of each example's values. The weighted sum
+ * of each neuron is then:
+ *
+ * <pre>
+ *  SUM over all i of: w_ij * v_i
+ *      ~= sw * sv * SUM over all i of: (qw_ij - zw) * (qv_i - zv)
+ *       = sw * sv * (SUM of: qw_ij * qv_i - zw * SUM of: qv_i
+ *                      - zv * SUM of: qw_ij + n * zw * zv)
+ * </pre>
+ *
+ * where the first sum is accumulated in 32-bit integers, and the column sums
+ * of {@code qw} are computed once. MNIST pixels are already unsigned bytes,
+ * so the first layer takes them directly (with scale 1/255 and zero point
+ * 0), and skips the zero pixels entirely.
+ * <p>
+ * Weights take a quarter of the memory of a {@link SimpleNN}.
+ */
+public class QuantizedNN {
+
+    /** The number of inputs/neurons in each layer */
+    public final int[] shape;
+
+    /** The activation function between each successive pair of layers. */
+    public final Activation[] actv;
+
+    /**
+     * Quantized weight matrices for each successive pair of layers, without
+     * the bias row. Element {@code l} has size {@code shape[l] * shape[l+1]},
+     * in {@code [i]-major} order.
+     */
+    private final byte[][] weights;
+
+    /** The (float) bias weights of each layer */
+    private final float[][] bias;
+
+    /** The scale of the quantized weights of each layer */
+    private final float[] scale;
+
+    /** The zero point of the quantized weights of each layer */
+    private final int[] zero;
+
+    /** The sum of each column of the quantized weights of each layer */
+    private final int[][] colsum;
+
+    /** Value storage for applying the network to one example */
+    public static class Values {
+
+        /** The output of the last layer */
+        public final float[] out;
+
+        /** Quantized input values of each layer, as unsigned bytes */
+        final int[][] q;
+
+        /** Integer weighted sums of the layer being computed */
+        final int[] acc;
+
+        /** Output values of each layer, in the same structure as SimpleNN */
+        final float[][] act;
+
+        Values(int[] shape) {
+            this.q = new int[shape.length - 1][];
+            this.act = new float[shape.length][];
+            int max = 0;
+            for (int l = 0; l < shape.length; l++) {
+                if (l < q.length) q[l] = new int[shape[l]];
+                act[l] = new float[shape[l]];
+                max = Math.max(max, shape[l]);
+            }
+            this.acc = new int[max];
+            this.out = act[shape.length - 1];
+        }
+    }
+
+    /**
+     * Quantize a trained network. Later changes to the network do not
+     * affect this copy.
+     */
+    public QuantizedNN(SimpleNN nn) {
+        this.shape = nn.shape.clone();
+        this.actv = nn.actv.clone();
+        final int layers = shape.length - 1;
+        this.weights = new byte[layers][];
+        this.bias = new float[layers][];
+        this.scale = new float[layers];
+        this.zero = new int[layers];
+        this.colsum = new int[layers][];
+        for (int l = 0; l < layers; l++) {
+            final float[] w = nn.weights[l];
+            final int shapeln = shape[l + 1];
+            bias[l] = Arrays.copyOf(w, shapeln);
+            // map [min, max] onto [-128, 127], keeping 0 exactly representable
+            float min = 0, max = 0;
+            for (int k = shapeln; k < w.length; k++) {
+                min = Math.min(min, w[k]);
+                max = Math.max(max, w[k]);
+            }
+            final float s = max > min ? (max - min) / 255 : 1;
+            final int z = clamp(Math.round(-128 - min / s), -128, 127);
+            final byte[] qw = new byte[w.length - shapeln];
+            final int[] cs = new int[shapeln];
+            for (int k = 0; k < qw.length; k++) {
+                final int q = clamp(Math.round(w[shapeln + k] / s) + z, -128,
+                        127);
+                qw[k] = (byte) q;
+                cs[k % shapeln] += q;
+            }
+            weights[l] = qw;
+            scale[l] = s;
+            zero[l] = z;
+            colsum[l] = cs;
+        }
+    }
+
+    /** Allocate value storage for applying the network to one example. */
+    public Values valueArray() {
+        return new Values(shape);
+    }
+
+    /** Return the memory used by the weights, in bytes */
+    public long weightBytes() {
+        long bytes = 0;
+        for (int l = 0; l < weights.length; l++) {
+            bytes += weights[l].length + 4 * bias[l].length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Apply the network to an input image of unsigned byte pixels, such as
+     * {@link DataSet#image(int, byte[], int)}, where byte value 255
+     * corresponds to 1.0.
+     *
+     * @param pixels The input values
+     * @param off The offset of the first input value
+     * @param vals Value storage, whose {@code out} receives the output
+     */
+    public void apply(byte[] pixels, int off, Values vals) {
+        final int[] q0 = vals.q[0];
+        for (int i = 0; i < shape[0]; i++) {
+            q0[i] = pixels[off + i] & 0xFF;
+        }
+        layer(0, vals, 1 / 255F, 0);
+        for (int l = 1; l < weights.length; l++) {
+            // quantize this layer's input to [0, 255] over its range
+            final float[] v = vals.act[l];
+            final int[] qv = vals.q[l];
+            float min = 0, max = 0;
+            for (int i = 0; i < v.length; i++) {
+                min = Math.min(min, v[i]);
+                max = Math.max(max, v[i]);
+            }
+            final float s = max > min ? (max - min) / 255 : 1;
+            final int z = clamp(Math.round(-min / s), 0, 255);
+            for (int i = 0; i < v.length; i++) {
+                qv[i] = clamp(Math.round(v[i] / s) + z, 0, 255);
+            }
+            layer(l, vals, s, z);
+        }
+    }
+
+    /**
+     * Compute layer {@code l+1} from the quantized values of layer {@code l},
+     * which have scale {@code sv} and zero point {@code zv}.
+     */
+    private void layer(int l, Values vals, float sv, int zv) {
+        final byte[] qw = weights[l];
+        final int[] qv = vals.q[l], acc = vals.acc, cs = colsum[l];
+        final int shapel = shape[l], shapeln = shape[l + 1];
+        final int zw = zero[l];
+        Arrays.fill(acc, 0, shapeln, 0);
+        int sumqv = 0;
+        for (int i = 0; i < shapel; i++) {
+            final int qv_i = qv[i];
+            if (qv_i == 0) continue;
+            sumqv += qv_i;
+            for (int j = 0, row = i * shapeln; j < shapeln; j++) {
+                acc[j] += qv_i * qw[row + j];
+            }
+        }
+        final float s = scale[l] * sv;
+        final int offset = shapel * zw * zv - zw * sumqv;
+        final float[] b = bias[l], nv = vals.act[l + 1];
+        for (int j = 0; j < shapeln; j++) {
+            nv[j] = b[j] + s * (acc[j] + offset - zv * cs[j]);
+        }
+        actv[l].activate(nv, nv);
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return Math.max(min, Math.min(max, x));
+    }
+
+    /**
+     * Compare a saved model with its quantized copy on the MNIST test set,
+     * reporting the error rate, weight memory and throughput of each.
+     * <p>
+     * Usage: {@code QuantizedNN MODELFILE}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("QuantizedNN MODELFILE");
+            return;
+        }
+        SimpleNN nn = ModelFile.load(args[0]);
+        QuantizedNN qnn = new QuantizedNN(nn);
+        DataSet test = Main.testingData();
+        long floatBytes = 0;
+        for (float[] w : nn.weights) {
+            floatBytes += 4L * w.length;
+        }
+        for (int pass = 0; pass < 2; pass++) { // the first pass warms up
+            long t0 = System.nanoTime();
+            float floatErr = Evaluator.errorRate(nn, test);
+            long t1 = System.nanoTime();
+            float int8Err = qnn.test(test);
+            long t2 = System.nanoTime();
+            if (pass == 0) continue;
+            System.out.format("float32: %6.2f%% incorrect, %9d weight bytes,"
+                    + " %8.0f examples/sec\n", floatErr * 100, floatBytes,
+                    test.imageCnt / ((t1 - t0) / 1e9));
+            System.out.format("int8:    %6.2f%% incorrect, %9d weight bytes,"
+                    + " %8.0f examples/sec\n", int8Err * 100, qnn
+                            .weightBytes(), test.imageCnt / ((t2 - t1) / 1e9));
+        }
+    }
+
+    /**
+     * Return the fraction of the examples in a data set that the network
+     * classifies incorrectly.
+     */
+    public float test(DataSet data) {
+        final Values vals = valueArray();
+        final byte[] pixels = new byte[data.pixelCnt()];
+        int errcnt = 0;
+        for (int idx = 0; idx < data.imageCnt; idx++) {
+            apply(data.image(idx, pixels, 0), 0, vals);
+            int answer = Metrics.answer(vals.out, 0, vals.out.length);
+            if (answer != data.label(idx)) errcnt++;
+        }
+        return errcnt / (float) data.imageCnt;
+    }
+}
@@ -0,0 +1,87 @@
+package edu.cmich.cps680fall2016.mnist;
+
+import java.util.Random;
+
+/**
+ * Shuffled sampling of example indices, one epoch at a time.
+ * <p>
+ * Every epoch visits each index in {@code [0, size)} exactly once, in a fresh
+ * random order. The order of each epoch depends only on the seed and the
+ * epoch number, so sampling is reproducible and can be resumed from any
+ * position with {@link #seek(int, int)}. The permutation buffer is reused, so
+ * no memory is allocated after construction.
+ */
+public class Sampler {
+
+    /** The number of indices in each epoch */
+    public final int size;
+
+    /** The seed that the order of every epoch is derived from */
+    public final long seed;
+
+    private final int[] perm;
+
+    private final Random rand = new Random();
+
+    private int epoch, pos;
+
+    /**
+     * Create a new sampler, positioned at the start of epoch 0.
+     *
+     * @param size The number of indices in each epoch
+     * @param seed The random seed
+     */
+    public Sampler(int size, long seed) {
+        assert (size > 0);
+        this.size = size;
+        this.seed = seed;
+        this.perm = new int[size];
+        seek(0, 0);
+    }
+
+    /** Return the current epoch number, starting from 0 */
+    public int epoch() {
+        return epoch;
+    }
+
+    /** Return the number of indices already returned in the current epoch */
+    public int position() {
+        return pos;
+    }
+
+    /** Move to position {@code pos} of epoch {@code epoch}. */
+    public void seek(int epoch, int pos) {
+        assert (epoch >= 0 && pos >= 0 && pos <= size);
+        this.epoch = epoch;
+        this.pos = pos;
+        shuffle();
+    }
+
+    /** Return the next index, starting a new epoch if necessary. */
+    public int next() {
+        if (pos == size) seek(epoch + 1, 0);
+        return perm[pos++];
+    }
+
+    /** Store the next {@code cnt} indices in {@code out} starting at {@code off}. */
+    public int[] next(int[] out, int off, int cnt) {
+        for (int k = 0; k < cnt; k++) {
+            out[off + k] = next();
+        }
+        return out;
+    }
+
+    /** Compute the permutation for the current epoch (Fisher-Yates shuffle) */
+    private void shuffle() {
+        rand.setSeed(seed + epoch * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < size; i++) {
+            perm[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int tmp = perm[i];
+            perm[i] = perm[j];
+            perm[j] = tmp;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package edu.cmich.cps680fall2016.mnist;
+
+/**
+ * Learning rate schedule: the learning rate to use as training progresses.
+ * <p>
+ * The rate is a function of the number of examples already trained on, so a
+ * schedule gives the same rates however the examples are batched, and
+ * continues where it left off when training is resumed.
+ */
+public interface Schedule {
+
+    /**
+     * Return the learning rate for the next update.
+     *
+     * @param examples The number of examples trained on so far
+     */
+    public float rate(long examples);
+
+    /** Return true if the rate is the same throughout */
+    public default boolean isConstant() {
+        return false;
+    }
+
+    /** The same rate throughout */
+    public static Schedule constant(final float rate) {
+        return new Schedule() {
+
+            @Override public float rate(long examples) {
+                return rate;
+            }
+
+            @Override public boolean isConstant() {
+                return true;
+            }
+
+            @Override public String toString() {
+                return "constant";
+            }
+        };
+    }
+
+    /**
+     * Step decay: the rate is multiplied by {@code factor} after every
+     * {@code every} examples.
+     */
+    public static Schedule step(final float rate, final long every,
+            final float factor) {
+        assert (every > 0);
+        return new Schedule() {
+
+            @Override public float rate(long examples) {
+                return rate * (float) Math.pow(factor, examples / every);
+            }
+
+            @Override public String toString() {
+                return "step";
+            }
+        };
+    }
+
+    /**
+     * Cosine decay: the rate follows half a cosine wave from {@code rate}
+     * down to 0 over {@code total} examples, falling slowly at first and last
+     * and fastest in the middle.
+     */
+    public static Schedule cosine(final float rate, final long total) {
+        assert (total > 0);
+        return new Schedule() {
+
+            @Override public float rate(long examples) {
+                final double t = Math.min(examples, total) / (double) total;
+                return (float) (rate * 0.5 * (1 + Math.cos(Math.PI * t)));
+            }
+
+            @Override public String toString() {
+                return "cosine";
+            }
+        };
+    }
+
+    /**
+     * Linear warmup: the rate of another schedule, scaled up linearly from
+     * near 0 over the first {@code examples} examples. This avoids large
+     * steps while the initial random weights (and any optimizer state) are
+     * far from settled.
+     */
+    public static Schedule warmup(final Schedule s, final long examples) {
+        assert (examples > 0);
+        return new Schedule() {
+
+            @Override public float rate(long c) {
+                final float r = s.rate(c);
+                return c < examples ? r * (c + 1) / examples : r;
+            }
+
+            @Override public String toString() {
+                return s + "+warmup";
+            }
+        };
+    }
+
+    /**
+     * The rest of a schedule, after the first {@code examples} examples, for
+     * continuing a resumed training run.
+     */
+    public static Schedule after(final Schedule s, final long examples) {
+        return new Schedule() {
+
+            @Override public float rate(long c) {
+                return s.rate(examples + c);
+            }
+
+            @Override public boolean isConstant() {
+                return s.isConstant();
+            }
+
+            @Override public String toString() {
+                return s.toString();
+            }
+        };
+    }
+}
@@ -1,9 +1,37 @@
 package edu.cmich.cps680fall2016.mnist;
 
+import java.util.Arrays;
 import java.util.Random;
 
 public class SimpleNN {
 
+    /**
+     * The number of weight matrix rows processed together by the batch
+     * kernels, chosen so that a block of rows stays in cache while it is
+     * applied to every example in the batch.
+     */
+    private static final int TILE_ROWS = 64;
+
+    /**
+     * The number of weight matrix columns processed together by the batch
+     * kernels, set by the system property {@code mnist.tileCols}. Blocking
+     * the columns as well keeps a block of the matrix in cache however wide
+     * the next layer is, but it measured no faster on a 2 MB L2 cache, so it
+     * is off (0, whole rows) by default.
+     */
+    private static final int TILE_COLS = tileCols();
+
+    private static int tileCols() {
+        int cols = Integer.getInteger("mnist.tileCols", 0);
+        if (cols < 0) {
+            throw new IllegalArgumentException("mnist.tileCols must be >= 0");
+        }
+        return cols > 0 ? cols : Integer.MAX_VALUE;
+    }
+
+    /** Inner-loop kernels, vectorized if possible */
+    private static final Kernels kern = Kernels.INSTANCE;
+
     /** The number of inputs/neurons in each layer */
     public final int[] shape;
 
@@ -20,6 +48,25 @@ public class SimpleNN {
     /** The loss function used to evaluate the output of the final layer. */
     public final Loss loss;
 
+    /**
+     * True if the last layer is a softmax evaluated with cross-entropy loss, in
+     * which case back-propagation computes the error of the last layer
+     * directly from the output rather than through the loss gradient and the
+     * activation derivative.
+     * 
+     * @see #fusedError(float[], int, float[], int, float[], int, int)
+     */
+    private final boolean fusedOutput;
+
+    /**
+     * If true, the input layer is assumed to be mostly zero (as MNIST pixels
+     * are), and the weight rows of zero inputs are skipped entirely in both
+     * the weighted sums and the weight updates. The results are the same
+     * either way, except that {@link #train(float[][], float[][], float[],
+     * float)} does not compute the error of the input layer.
+     */
+    public boolean sparseInput;
+
     /**
      * Create a new NN with all weights initialized to 0.
      * 
@@ -39,6 +86,11 @@ public class SimpleNN {
         }
         this.actv = actvFuncs.clone();
         this.loss = lossFunc;
+        final Activation last = actv[actv.length - 1];
+        this.fusedOutput = (last == Activation.SOFTMAX
+                || last == Activation.FAST_SOFTMAX)
+                && (lossFunc == Loss.CROSS_ENTROPY
+                        || lossFunc == Loss.FAST_CROSS_ENTROPY);
     }
 
     /**
@@ -58,6 +110,36 @@ public class SimpleNN {
         }
     }
 
+    /**
+     * Copy the weights of the network into {@code out}, or into new arrays if
+     * it is null.
+     * 
+     * @param out Arrays with the same structure as {@link #weights}, or null
+     * @return The copy
+     */
+    public float[][] copyWeights(float[][] out) {
+        if (out == null) out = new float[weights.length][];
+        for (int layeridx = 0; layeridx < weights.length; layeridx++) {
+            if (out[layeridx] == null)
+                out[layeridx] = new float[weights[layeridx].length];
+            System.arraycopy(weights[layeridx], 0, out[layeridx], 0,
+                    weights[layeridx].length);
+        }
+        return out;
+    }
+
+    /**
+     * Replace the weights of the network with a copy of {@code in}.
+     * 
+     * @param in Arrays with the same structure as {@link #weights}
+     */
+    public void setWeights(float[][] in) {
+        for (int layeridx = 0; layeridx < weights.length; layeridx++) {
+            System.arraycopy(in[layeridx], 0, weights[layeridx], 0,
+                    weights[layeridx].length);
+        }
+    }
+
     /**
      * Allocate and return value storage arrays for training/applying the NN.
      * 
@@ -72,6 +154,42 @@ public class SimpleNN {
         return values;
     }
 
+    /**
+     * Allocate and return value storage for training/applying the NN to a
+     * batch of examples.
+     * 
+     * @param capacity The maximum number of examples in a batch.
+     * @return A batch suitable for passing to {@link #trainBatch(MiniBatch,
+     *         float)} or {@link #applyBatch(MiniBatch)}.
+     */
+    public MiniBatch batchValues(int capacity) {
+        return new MiniBatch(shape, capacity, true);
+    }
+
+    /**
+     * Allocate and return value storage for applying the NN to a batch of
+     * examples. Unlike {@link #batchValues(int)}, no storage is allocated for
+     * errors or gradients.
+     * 
+     * @param capacity The maximum number of examples in a batch.
+     * @return A batch suitable for passing to {@link #applyBatch(MiniBatch)}.
+     */
+    public MiniBatch applyValues(int capacity) {
+        return new MiniBatch(shape, capacity, false);
+    }
+
+    /**
+     * Allocate and return storage for only the examples of a batch: its input
+     * rows and expected output rows. Such a batch can be passed to
+     * {@link ParallelTrainer#trainBatch(MiniBatch, float)} or copied into
+     * other batches with {@link MiniBatch#copyExamples(MiniBatch)}.
+     * 
+     * @param capacity The maximum number of examples in a batch.
+     */
+    public MiniBatch exampleValues(int capacity) {
+        return new MiniBatch(shape, capacity, false, false);
+    }
+
     /**
      * Apply the neural network to an input.
      * 
@@ -103,12 +221,11 @@ public class SimpleNN {
             final float[] v = values[layeridx];
             final float[] nv = values[layeridx + 1];
             final int shapel = shape[layeridx], shapeln = shape[layeridx + 1];
+            final boolean sparse = sparseInput && layeridx == 0;
             System.arraycopy(w, 0, nv, 0, shapeln); // bias
-            for (int biased_ij = shapeln, i = 0; i < shapel; i++) {
-                final float v_i = v[i];
-                for (int j = 0; j < shapeln; j++, biased_ij++) {
-                    nv[j] += w[biased_ij] * v_i;
-                }
+            for (int i = 0; i < shapel; i++) {
+                if (sparse && v[i] == 0) continue;
+                kern.axpy(v[i], w, (i + 1) * shapeln, nv, 0, shapeln);
             }
 
             // compute activation function for next layer
@@ -135,7 +252,11 @@ public class SimpleNN {
      * 
      * This is stochastic training - the network is updated after each
      * input/output training example rather than waiting until the entire
-     * training set is run.
+     * training set is run. The update is the same as
+     * {@link #trainBatch(MiniBatch, float)} with a batch of just this example,
+     * up to rounding: the error of each layer is propagated using the weights
+     * from before the update, and each layer's weights are updated with the
+     * error after its activation derivative.
      * 
      * @param act An array of input activations for each layer of the network,
      *            where {@code act[0]} is the input to the first layer and
@@ -161,12 +282,11 @@ public class SimpleNN {
             final float[] v = act[layeridx];
             final float[] nv = err[layeridx + 1];
             final int shapel = shape[layeridx], shapeln = shape[layeridx + 1];
+            final boolean sparse = sparseInput && layeridx == 0;
             System.arraycopy(w, 0, nv, 0, shapeln); // bias
-            for (int biased_ij = shapeln, i = 0; i < shapel; i++) {
-                final float v_i = v[i];
-                for (int j = 0; j < shapeln; j++, biased_ij++) {
-                    nv[j] += w[biased_ij] * v_i;
-                }
+            for (int i = 0; i < shapel; i++) {
+                if (sparse && v[i] == 0) continue;
+                kern.axpy(v[i], w, (i + 1) * shapeln, nv, 0, shapeln);
             }
 
             // compute activation function for next layer
@@ -175,30 +295,344 @@ public class SimpleNN {
 
         // back-propagation
         final int layermax = shape.length - 1;
-        loss.gradient(act[layermax], expected, err[layermax]); // err of last layer
+        if (fusedOutput) {
+            // err of last layer, already through the activation function
+            fusedError(act[layermax], 0, expected, 0, err[layermax], 0,
+                    shape[layermax]);
+        } else {
+            loss.gradient(act[layermax], expected, err[layermax]);
+        }
         for (int layeridx = layermax; layeridx > 0; layeridx--) {
 
-            // compute directed gradient of activation function along error vector
+            // compute directed gradient of activation function along error
+            // vector (the fused error of the last layer already includes it)
             final float[] v = act[layeridx];
             final float[] e = err[layeridx];
-            actv[layeridx - 1].dctDerivative(v, e, v);
+            if (!fusedOutput || layeridx < layermax) {
+                actv[layeridx - 1].outDerivative(v, e, e);
+            }
 
             // update weights and calculate error for previous layer
             final float[] w = weights[layeridx - 1];
             final float[] pv = act[layeridx - 1];
             final float[] pe = err[layeridx - 1];
             final int shapel = shape[layeridx], shapelp = shape[layeridx - 1];
-            for (int j = 0; j < shapel; j++) {
-                w[j] -= rate * e[j];    // update bias weights
-            }
-            for (int biased_ij = shapel, i = 0; i < shapelp; i++) {
-                final float pv_i = pv[i];
-                float pe_i = 0;
-                for (int j = 0; j < shapel; j++, biased_ij++) {
-                    pe_i += w[biased_ij] * v[j];
-                    w[biased_ij] -= rate * pv_i * e[j];
+            kern.axpy(-rate, e, 0, w, 0, shapel); // update bias weights
+            if (sparseInput && layeridx == 1) {
+                // the input error is not needed, and zero inputs leave their
+                // weights unchanged
+                for (int i = 0; i < shapelp; i++) {
+                    if (pv[i] == 0) continue;
+                    kern.axpy(-rate * pv[i], e, 0, w, (i + 1) * shapel, shapel);
+                }
+                continue;
+            }
+            for (int i = 0; i < shapelp; i++) {
+                final int row = (i + 1) * shapel;
+                // previous layer error from the row before it is updated
+                pe[i] = kern.dot(w, row, e, 0, shapel);
+                kern.axpy(-rate * pv[i], e, 0, w, row, shapel);
+            }
+        }
+    }
+
+    /**
+     * Train the neural network with a batch of input, output pairs.
+     * 
+     * This is mini-batch training - the gradient is accumulated over every
+     * example in the batch, and the network is updated once using the mean
+     * gradient.
+     * 
+     * @param batch A batch of input rows ({@code batch.act[0]}) and expected
+     *            output rows ({@code batch.expected}).
+     * @param rate The back-propagation rate.
+     */
+    public void trainBatch(MiniBatch batch, float rate) {
+        gradient(batch);
+        update(batch.grad, rate / batch.size);
+    }
+
+    /**
+     * Train the neural network with a batch of input, output pairs, updating
+     * the weights with an optimizer.
+     * 
+     * @param batch A batch of input rows ({@code batch.act[0]}) and expected
+     *            output rows ({@code batch.expected}).
+     * @param rate The learning rate.
+     * @param opt The optimizer for this network.
+     * @see #trainBatch(MiniBatch, float)
+     */
+    public void trainBatch(MiniBatch batch, float rate, Optimizer opt) {
+        gradient(batch);
+        opt.update(batch.grad, batch.size, rate);
+    }
+
+    /**
+     * Compute the gradient of the loss with respect to every weight, summed
+     * over all examples in a batch, and store it in {@code batch.grad}. The
+     * weights are not modified.
+     * 
+     * @param batch A batch of input rows ({@code batch.act[0]}) and expected
+     *            output rows ({@code batch.expected}).
+     */
+    public void gradient(MiniBatch batch) {
+        assert (batch.act.length == shape.length);
+        assert (batch.size > 0 && batch.size <= batch.capacity);
+        assert (batch.grad != null);
+        final int rows = batch.size;
+
+        // apply NN
+        forward(batch);
+
+        // err of last layer
+        final int layermax = shape.length - 1;
+        final int outcnt = shape[layermax];
+        final float[] out = batch.rowA[layermax], exp = batch.rowB[layermax];
+        for (int b = 0; b < rows; b++) {
+            if (fusedOutput) {
+                fusedError(batch.act[layermax], b * outcnt, batch.expected,
+                        b * outcnt, batch.err[layermax], b * outcnt, outcnt);
+                continue;
+            }
+            System.arraycopy(batch.act[layermax], b * outcnt, out, 0, outcnt);
+            System.arraycopy(batch.expected, b * outcnt, exp, 0, outcnt);
+            loss.gradient(out, exp, out);
+            System.arraycopy(out, 0, batch.err[layermax], b * outcnt, outcnt);
+        }
+
+        // back-propagation
+        for (int layeridx = layermax; layeridx > 0; layeridx--) {
+            final int shapel = shape[layeridx], shapelp = shape[layeridx - 1];
+
+            // compute directed gradient of activation function along error
+            // vector, one row at a time (the fused error already includes it)
+            final float[] a = batch.act[layeridx];
+            final float[] e = batch.err[layeridx];
+            final float[] arow = batch.rowA[layeridx];
+            final float[] erow = batch.rowB[layeridx];
+            final boolean fused = fusedOutput && layeridx == layermax;
+            for (int b = 0; b < rows && !fused; b++) {
+                System.arraycopy(a, b * shapel, arow, 0, shapel);
+                System.arraycopy(e, b * shapel, erow, 0, shapel);
+                actv[layeridx - 1].outDerivative(arow, erow, erow);
+                System.arraycopy(erow, 0, e, b * shapel, shapel);
+            }
+
+            // accumulate weight gradient and calculate error for previous layer
+            final float[] g = batch.grad[layeridx - 1];
+            Arrays.fill(g, 0);
+            final float[] pe = layeridx > 1 ? batch.err[layeridx - 1] : null;
+            if (sparseInput && layeridx == 1) {
+                sparseBackMultiply(g, batch, e, rows, shapelp, shapel);
+            } else {
+                backMultiply(weights[layeridx - 1], g, batch.act[layeridx - 1],
+                        e, pe, rows, shapelp, shapel);
+            }
+        }
+    }
+
+    /**
+     * Apply the neural network to a batch of inputs.
+     * 
+     * @param batch A batch of input rows ({@code batch.act[0]}). The output
+     *            rows are stored in {@code batch.act[batch.act.length - 1]}.
+     */
+    public void applyBatch(MiniBatch batch) {
+        assert (batch.act.length == shape.length);
+        assert (batch.size > 0 && batch.size <= batch.capacity);
+        forward(batch);
+    }
+
+    /**
+     * Apply the neural network to a batch of inputs, storing the activations
+     * of each layer in {@code batch.act}.
+     */
+    private void forward(MiniBatch batch) {
+        final int rows = batch.size;
+        for (int layeridx = 0; layeridx < weights.length; layeridx++) {
+            final float[] a = batch.act[layeridx + 1];
+            final int shapel = shape[layeridx], shapeln = shape[layeridx + 1];
+            if (sparseInput && layeridx == 0) {
+                sparseMultiply(weights[layeridx], batch, a, rows, shapel,
+                        shapeln);
+            } else {
+                multiply(weights[layeridx], batch.act[layeridx], a, rows,
+                        shapel, shapeln);
+            }
+
+            // compute activation function for next layer, one row at a time
+            final float[] row = batch.rowA[layeridx + 1];
+            for (int b = 0; b < rows; b++) {
+                System.arraycopy(a, b * shapeln, row, 0, shapeln);
+                actv[layeridx].activate(row, row);
+                System.arraycopy(row, 0, a, b * shapeln, shapeln);
+            }
+        }
+    }
+
+    /**
+     * Update the weights of the neural network along a gradient.
+     * 
+     * @param grad A gradient with the same structure as {@link #weights}.
+     * @param scale The amount to scale the gradient by before subtracting it.
+     */
+    public void update(float[][] grad, float scale) {
+        assert (grad.length == weights.length);
+        for (int layeridx = 0; layeridx < weights.length; layeridx++) {
+            kern.axpy(-scale, grad[layeridx], 0, weights[layeridx], 0,
+                    weights[layeridx].length);
+        }
+    }
+
+    /**
+     * Compute the error of the weighted sums of a softmax output layer under
+     * cross-entropy loss, given the softmax output {@code p} and the expected
+     * output {@code y}. Chaining the cross-entropy gradient {@code -y_j/p_j}
+     * through the softmax derivative gives:
+     * 
+     * <pre>
+     *  dL/dz_j = p_j * (-y_j/p_j - SUM over all k of: p_k * (-y_k/p_k))
+     *          = p_j * SUM over all k of: y_k - y_j
+     * </pre>
+     * 
+     * which needs neither exp() nor the division by {@code p_j} that makes
+     * {@link Loss#CROSS_ENTROPY} unstable.
+     */
+    private static void fusedError(float[] p, int poff, float[] y, int yoff,
+            float[] out, int outoff, int n) {
+        float sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += y[yoff + k];
+        }
+        for (int j = 0; j < n; j++) {
+            out[outoff + j] = p[poff + j] * sum - y[yoff + j];
+        }
+    }
+
+    /**
+     * Compute the weighted sums {@code nv} for a batch of input rows
+     * {@code v}, i.e. the matrix product of the inputs (augmented with a bias
+     * column of ones) and the weight matrix {@code w}.
+     */
+    private static void multiply(float[] w, float[] v, float[] nv, int rows,
+            int shapel, int shapeln) {
+        for (int b = 0; b < rows; b++) {
+            System.arraycopy(w, 0, nv, b * shapeln, shapeln); // bias
+        }
+        for (int j0 = 0; j0 < shapeln; j0 += TILE_COLS) {
+            final int n = Math.min(shapeln - j0, TILE_COLS);
+            for (int i0 = 0; i0 < shapel; i0 += TILE_ROWS) {
+                final int i1 = Math.min(shapel, i0 + TILE_ROWS);
+                for (int b = 0; b < rows; b++) {
+                    final int voff = b * shapel, nvoff = b * shapeln + j0;
+                    for (int i = i0; i < i1; i++) {
+                        kern.axpy(v[voff + i], w, (i + 1) * shapeln + j0, nv,
+                                nvoff, n);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * As {@link #multiply}, for the input rows of a batch, skipping zero
+     * inputs. The indices of the nonzero inputs of each row are stored in
+     * {@code batch.nzIdx} for {@link #sparseBackMultiply}.
+     */
+    private static void sparseMultiply(float[] w, MiniBatch batch, float[] nv,
+            int rows, int shapel, int shapeln) {
+        final float[] v = batch.act[0];
+        if (batch.nzIdx == null) {
+            batch.nzIdx = new int[batch.capacity * shapel];
+            batch.nzCnt = new int[batch.capacity];
+            batch.nzPos = new int[batch.capacity];
+        }
+        final int[] nz = batch.nzIdx, cnt = batch.nzCnt, pos = batch.nzPos;
+        for (int b = 0; b < rows; b++) {
+            final int voff = b * shapel;
+            int c = 0;
+            for (int i = 0; i < shapel; i++) {
+                if (v[voff + i] != 0) nz[voff + c++] = i;
+            }
+            cnt[b] = c;
+            System.arraycopy(w, 0, nv, b * shapeln, shapeln); // bias
+        }
+        for (int j0 = 0; j0 < shapeln; j0 += TILE_COLS) {
+            final int n = Math.min(shapeln - j0, TILE_COLS);
+            Arrays.fill(pos, 0, rows, 0);
+            for (int i0 = 0; i0 < shapel; i0 += TILE_ROWS) {
+                final int i1 = Math.min(shapel, i0 + TILE_ROWS);
+                for (int b = 0; b < rows; b++) {
+                    final int voff = b * shapel, nvoff = b * shapeln + j0;
+                    int k = pos[b];
+                    for (int i; k < cnt[b] && (i = nz[voff + k]) < i1; k++) {
+                        kern.axpy(v[voff + i], w, (i + 1) * shapeln + j0, nv,
+                                nvoff, n);
+                    }
+                    pos[b] = k;
+                }
+            }
+        }
+    }
+
+    /**
+     * As {@link #backMultiply} without an error for the previous layer, for
+     * the input rows of a batch, skipping zero inputs. Requires the nonzero
+     * indices stored by {@link #sparseMultiply}.
+     */
+    private static void sparseBackMultiply(float[] g, MiniBatch batch,
+            float[] e, int rows, int shapelp, int shapel) {
+        final float[] pv = batch.act[0];
+        final int[] nz = batch.nzIdx, cnt = batch.nzCnt, pos = batch.nzPos;
+        for (int b = 0; b < rows; b++) {
+            kern.axpy(1, e, b * shapel, g, 0, shapel); // bias gradient
+        }
+        for (int j0 = 0; j0 < shapel; j0 += TILE_COLS) {
+            final int n = Math.min(shapel - j0, TILE_COLS);
+            Arrays.fill(pos, 0, rows, 0);
+            for (int i0 = 0; i0 < shapelp; i0 += TILE_ROWS) {
+                final int i1 = Math.min(shapelp, i0 + TILE_ROWS);
+                for (int b = 0; b < rows; b++) {
+                    final int pvoff = b * shapelp, eoff = b * shapel + j0;
+                    int k = pos[b];
+                    for (int i; k < cnt[b] && (i = nz[pvoff + k]) < i1; k++) {
+                        kern.axpy(pv[pvoff + i], e, eoff, g, (i + 1) * shapel
+                                + j0, n);
+                    }
+                    pos[b] = k;
+                }
+            }
+        }
+    }
+
+    /**
+     * Accumulate the weight gradient {@code g} for a batch of input rows
+     * {@code pv} and error rows {@code e}, and (if {@code pe} is non-null)
+     * compute the error rows for the previous layer using the weights
+     * {@code w}. With column tiling on, the error for the previous layer is
+     * summed one block of columns at a time, so it may differ in the last
+     * bits from an unblocked dot product.
+     */
+    private static void backMultiply(float[] w, float[] g, float[] pv,
+            float[] e, float[] pe, int rows, int shapelp, int shapel) {
+        for (int b = 0; b < rows; b++) {
+            kern.axpy(1, e, b * shapel, g, 0, shapel); // bias gradient
+        }
+        for (int j0 = 0; j0 < shapel; j0 += TILE_COLS) {
+            final int n = Math.min(shapel - j0, TILE_COLS);
+            for (int i0 = 0; i0 < shapelp; i0 += TILE_ROWS) {
+                final int i1 = Math.min(shapelp, i0 + TILE_ROWS);
+                for (int b = 0; b < rows; b++) {
+                    final int pvoff = b * shapelp, eoff = b * shapel + j0;
+                    for (int i = i0; i < i1; i++) {
+                        final int row = (i + 1) * shapel + j0;
+                        if (pe != null) {
+                            final float d = kern.dot(w, row, e, eoff, n);
+                            pe[pvoff + i] = j0 == 0 ? d : pe[pvoff + i] + d;
+                        }
+                        kern.axpy(pv[pvoff + i], e, eoff, g, row, n);
+                    }
                 }
-                pe[i] = pe_i;
             }
         }
     }